@@ -9,8 +9,10 @@ import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
 import org.xml.sax.helpers.DefaultHandler;
 
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.ByteArrayInputStream;
@@ -18,6 +20,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
 
 /*
@@ -46,6 +49,8 @@ import java.util.Vector;
  * Entry point for parsing SVG files for Android.
  * Use one of the various static methods for parsing SVGs by resource, asset or input stream.
  * Optionally, a single color can be searched and replaced in the SVG while parsing.
+ * To render the same SVG in several colors, parse it once as an {@link SVGTemplate} and
+ * instantiate that with the color substitutions instead.
  * You can also parse an svg path directly.
  *
  * @author Larva Labs, LLC
@@ -53,12 +58,50 @@ import java.util.Vector;
  * @see #getSVGFromAsset(android.content.res.AssetManager, String)
  * @see #getSVGFromString(String)
  * @see #getSVGFromInputStream(java.io.InputStream)
+ * @see #getSVGTemplateFromResource(android.content.res.Resources, int)
  * @see #parsePath(String)
  */
 public class SVGParser {
 
     static final String TAG = "SVGAndroid";
 
+    /**
+     * Looking up the factory is expensive, so it is only done once. Factories are not
+     * guaranteed to be thread-safe, so access to it is synchronized.
+     */
+    private static SAXParserFactory parserFactory = null;
+
+    /**
+     * Each thread keeps its own reader and handler, which are reused for every document it
+     * parses.
+     */
+    private static final ThreadLocal<ParserState> parserState = new ThreadLocal<ParserState>();
+
+    private static class ParserState {
+        final XMLReader reader;
+        final SVGHandler handler = new SVGHandler();
+
+        ParserState(XMLReader reader) {
+            this.reader = reader;
+        }
+    }
+
+    private static ParserState getParserState() throws ParserConfigurationException, SAXException {
+        ParserState state = parserState.get();
+        if (state == null) {
+            SAXParser sp;
+            synchronized (SVGParser.class) {
+                if (parserFactory == null) {
+                    parserFactory = SAXParserFactory.newInstance();
+                }
+                sp = parserFactory.newSAXParser();
+            }
+            state = new ParserState(sp.getXMLReader());
+            parserState.set(state);
+        }
+        return state;
+    }
+
     /**
      * Parse SVG data from an input stream.
      *
@@ -183,6 +226,31 @@ public class SVGParser {
         return SVGParser.parse(resources.openRawResource(resId), 0, 0, false, storePaths);
     }
 
+    /**
+     * Parse SVG data from an input stream into a template, which can then be rendered
+     * with different color substitutions without parsing the data again.
+     *
+     * @param svgData the input stream, with SVG XML data in UTF-8 character encoding.
+     * @return the parsed template.
+     * @throws SVGParseException if there is an error while parsing.
+     */
+    public static SVGTemplate getSVGTemplateFromInputStream(InputStream svgData) throws SVGParseException {
+        return SVGParser.parseTemplate(svgData);
+    }
+
+    /**
+     * Parse SVG data from an Android application resource into a template, which can then
+     * be rendered with different color substitutions without parsing the data again.
+     *
+     * @param resources the Android context resources.
+     * @param resId     the ID of the raw resource SVG.
+     * @return the parsed template.
+     * @throws SVGParseException if there is an error while parsing.
+     */
+    public static SVGTemplate getSVGTemplateFromResource(Resources resources, int resId) throws SVGParseException {
+        return SVGParser.parseTemplate(resources.openRawResource(resId));
+    }
+
     /**
      * Parses a single SVG path and returns it as a <code>android.graphics.Path</code> object.
      * An example path is <code>M250,150L150,350L350,350Z</code>, which draws a triangle.
@@ -197,127 +265,153 @@ public class SVGParser {
 //        Util.debug("Parsing SVG...");
         try {
             long start = System.currentTimeMillis();
-            SAXParserFactory spf = SAXParserFactory.newInstance();
-            SAXParser sp = spf.newSAXParser();
-            XMLReader xr = sp.getXMLReader();
+            ParserState state = getParserState();
             final Picture picture = new Picture();
             Vector<Path> paths = null;
             if (storePaths) {
                 paths = new Vector<Path>();
             }
-            SVGHandler handler = new SVGHandler(picture, paths);
+            SVGHandler handler = state.handler;
+            handler.reset(picture, paths);
             handler.setColorSwap(searchColor, replaceColor);
             handler.setWhiteMode(whiteMode);
+            XMLReader xr = state.reader;
             xr.setContentHandler(handler);
             xr.parse(new InputSource(in));
 //        Util.debug("Parsing complete in " + (System.currentTimeMillis() - start) + " millis.");
-            SVG result = new SVG(picture, handler.bounds);
-            result.setPaths(paths);
-            // Skip bounds if it was an empty pic
-            if (!Float.isInfinite(handler.limits.top)) {
-                result.setLimits(handler.limits);
+            SVG result = createResult(picture, handler, paths);
+            handler.reset(null, null);
+            return result;
+        } catch (Exception e) {
+            // Don't reuse a reader that failed part way through a document.
+            parserState.remove();
+            throw new SVGParseException(e);
+        }
+    }
+
+    private static SVGTemplate parseTemplate(InputStream in) throws SVGParseException {
+        try {
+            XMLReader xr = getParserState().reader;
+            SVGRecorder recorder = new SVGRecorder();
+            xr.setContentHandler(recorder);
+            xr.parse(new InputSource(in));
+            return new SVGTemplate(recorder.events);
+        } catch (Exception e) {
+            parserState.remove();
+            throw new SVGParseException(e);
+        }
+    }
+
+    /**
+     * Renders a template by replaying its recorded elements through the thread's handler.
+     *
+     * @param template   the template to render.
+     * @param colorSwaps map from colors in the SVG to the colors replacing them, may be null.
+     * @return the rendered SVG.
+     * @throws SVGParseException if there is an error while rendering.
+     */
+    static SVG renderTemplate(SVGTemplate template, Map<Integer, Integer> colorSwaps) throws SVGParseException {
+        try {
+            final Picture picture = new Picture();
+            SVGHandler handler = getParserState().handler;
+            handler.reset(picture, null);
+            handler.setColorSwaps(colorSwaps);
+            handler.setPathCache(template.pathCache);
+            handler.startDocument();
+            for (SVGTemplate.Event event : template.events) {
+                if (event.start) {
+                    handler.startElement(event.namespaceURI, event.localName, event.qName, event.atts);
+                } else {
+                    handler.endElement(event.namespaceURI, event.localName, event.qName);
+                }
             }
+            handler.endDocument();
+            SVG result = createResult(picture, handler, null);
+            handler.reset(null, null);
             return result;
         } catch (Exception e) {
+            // Don't reuse a handler that failed part way through a document.
+            parserState.remove();
             throw new SVGParseException(e);
         }
     }
 
-    private static NumberParse parseNumbers(String s) {
+    private static SVG createResult(Picture picture, SVGHandler handler, Vector<Path> paths) {
+        SVG result = new SVG(picture, handler.bounds);
+        result.setPaths(paths);
+        // Skip bounds if it was an empty pic
+        if (!Float.isInfinite(handler.limits.top)) {
+            result.setLimits(handler.limits);
+        }
+        return result;
+    }
+
+    static NumberParse parseNumbers(String s) {
+        return parseNumbers(s, 0);
+    }
+
+    /**
+     * Parses a list of numbers, stopping at the first character that cannot start a number
+     * (such as a path command or a closing parenthesis). The numbers are scanned in place with
+     * {@link ParserHelper}, without creating substrings or boxing them.
+     *
+     * @param s     the string to parse.
+     * @param start index of the first character to parse.
+     */
+    static NumberParse parseNumbers(String s, int start) {
         //Util.debug("Parsing numbers from: '" + s + "'");
+        NumberParse np = new NumberParse();
         int n = s.length();
-        int p = 0;
-        ArrayList<Float> numbers = new ArrayList<Float>();
-        boolean skipChar = false;
-        for (int i = 1; i < n; i++) {
-            if (skipChar) {
-                skipChar = false;
-                continue;
-            }
-            char c = s.charAt(i);
-            switch (c) {
+        if (start >= n) {
+            np.nextCmd = n;
+            return np;
+        }
+        ParserHelper ph = new ParserHelper(s, start);
+        skipSeparators(ph);
+        while (ph.pos < n) {
+            char c = s.charAt(ph.pos);
+            if (!(c >= '0' && c <= '9') && c != '-' && c != '+' && c != '.') {
                 // This ends the parsing, as we are on the next element
-                case 'M':
-                case 'm':
-                case 'Z':
-                case 'z':
-                case 'L':
-                case 'l':
-                case 'H':
-                case 'h':
-                case 'V':
-                case 'v':
-                case 'C':
-                case 'c':
-                case 'S':
-                case 's':
-                case 'Q':
-                case 'q':
-                case 'T':
-                case 't':
-                case 'a':
-                case 'A':
-                case ')': {
-                    String str = s.substring(p, i);
-                    if (str.trim().length() > 0) {
-                        //Util.debug("  Last: " + str);
-                        Float f = Float.parseFloat(str);
-                        numbers.add(f);
-                    }
-                    p = i;
-                    return new NumberParse(numbers, p);
-                }
-                case '\n':
-                case '\t':
-                case ' ':
-                case ',':
-                case '-': {
-                    String str = s.substring(p, i);
-                    // Just keep moving if multiple whitespace
-                    if (str.trim().length() > 0) {
-                        //Util.debug("  Next: " + str);
-                        Float f = Float.parseFloat(str);
-                        numbers.add(f);
-                        if (c == '-') {
-                            p = i;
-                        } else {
-                            p = i + 1;
-                            skipChar = true;
-                        }
-                    } else {
-                        p++;
-                    }
-                    break;
-                }
+                break;
             }
-        }
-        String last = s.substring(p);
-        if (last.length() > 0) {
-            //Util.debug("  Last: " + last);
-            try {
-                numbers.add(Float.parseFloat(last));
-            } catch (NumberFormatException nfe) {
-                // Just white-space, forget it
+            float f = ph.parseFloat();
+            if (Float.isNaN(f)) {
+                break;
             }
-            p = s.length();
+            np.add(f);
+            skipSeparators(ph);
         }
-        return new NumberParse(numbers, p);
+        np.nextCmd = ph.pos;
+        return np;
+    }
+
+    /**
+     * Skips any run of whitespace and commas between numbers. skipNumberSeparator() alone
+     * stops at whitespace such as '\r', so both skips repeat until neither advances.
+     */
+    private static void skipSeparators(ParserHelper ph) {
+        int pos;
+        do {
+            pos = ph.pos;
+            ph.skipWhitespace();
+            ph.skipNumberSeparator();
+        } while (ph.pos != pos);
     }
 
     private static Matrix parseTransform(String s) {
         if (s.startsWith("matrix(")) {
-            NumberParse np = parseNumbers(s.substring("matrix(".length()));
-            if (np.numbers.size() == 6) {
+            NumberParse np = parseNumbers(s, "matrix(".length());
+            if (np.size() == 6) {
                 Matrix matrix = new Matrix();
                 matrix.setValues(new float[]{
                         // Row 1
-                        np.numbers.get(0),
-                        np.numbers.get(2),
-                        np.numbers.get(4),
+                        np.getNumber(0),
+                        np.getNumber(2),
+                        np.getNumber(4),
                         // Row 2
-                        np.numbers.get(1),
-                        np.numbers.get(3),
-                        np.numbers.get(5),
+                        np.getNumber(1),
+                        np.getNumber(3),
+                        np.getNumber(5),
                         // Row 3
                         0,
                         0,
@@ -326,54 +420,54 @@ public class SVGParser {
                 return matrix;
             }
         } else if (s.startsWith("translate(")) {
-            NumberParse np = parseNumbers(s.substring("translate(".length()));
-            if (np.numbers.size() > 0) {
-                float tx = np.numbers.get(0);
+            NumberParse np = parseNumbers(s, "translate(".length());
+            if (np.size() > 0) {
+                float tx = np.getNumber(0);
                 float ty = 0;
-                if (np.numbers.size() > 1) {
-                    ty = np.numbers.get(1);
+                if (np.size() > 1) {
+                    ty = np.getNumber(1);
                 }
                 Matrix matrix = new Matrix();
                 matrix.postTranslate(tx, ty);
                 return matrix;
             }
         } else if (s.startsWith("scale(")) {
-            NumberParse np = parseNumbers(s.substring("scale(".length()));
-            if (np.numbers.size() > 0) {
-                float sx = np.numbers.get(0);
+            NumberParse np = parseNumbers(s, "scale(".length());
+            if (np.size() > 0) {
+                float sx = np.getNumber(0);
                 float sy = 0;
-                if (np.numbers.size() > 1) {
-                    sy = np.numbers.get(1);
+                if (np.size() > 1) {
+                    sy = np.getNumber(1);
                 }
                 Matrix matrix = new Matrix();
                 matrix.postScale(sx, sy);
                 return matrix;
             }
         } else if (s.startsWith("skewX(")) {
-            NumberParse np = parseNumbers(s.substring("skewX(".length()));
-            if (np.numbers.size() > 0) {
-                float angle = np.numbers.get(0);
+            NumberParse np = parseNumbers(s, "skewX(".length());
+            if (np.size() > 0) {
+                float angle = np.getNumber(0);
                 Matrix matrix = new Matrix();
                 matrix.postSkew((float) Math.tan(angle), 0);
                 return matrix;
             }
         } else if (s.startsWith("skewY(")) {
-            NumberParse np = parseNumbers(s.substring("skewY(".length()));
-            if (np.numbers.size() > 0) {
-                float angle = np.numbers.get(0);
+            NumberParse np = parseNumbers(s, "skewY(".length());
+            if (np.size() > 0) {
+                float angle = np.getNumber(0);
                 Matrix matrix = new Matrix();
                 matrix.postSkew(0, (float) Math.tan(angle));
                 return matrix;
             }
         } else if (s.startsWith("rotate(")) {
-            NumberParse np = parseNumbers(s.substring("rotate(".length()));
-            if (np.numbers.size() > 0) {
-                float angle = np.numbers.get(0);
+            NumberParse np = parseNumbers(s, "rotate(".length());
+            if (np.size() > 0) {
+                float angle = np.getNumber(0);
                 float cx = 0;
                 float cy = 0;
-                if (np.numbers.size() > 2) {
-                    cx = np.numbers.get(1);
-                    cy = np.numbers.get(2);
+                if (np.size() > 2) {
+                    cx = np.getNumber(1);
+                    cy = np.getNumber(2);
                 }
                 Matrix matrix = new Matrix();
                 matrix.postTranslate(cx, cy);
@@ -646,13 +740,22 @@ public class SVGParser {
         }
     }
 
-    private static class NumberParse {
-        private ArrayList<Float> numbers;
+    static class NumberParse {
+        private float[] numbers = new float[8];
+        private int size = 0;
         private int nextCmd;
 
-        public NumberParse(ArrayList<Float> numbers, int nextCmd) {
-            this.numbers = numbers;
-            this.nextCmd = nextCmd;
+        private void add(float number) {
+            if (size == numbers.length) {
+                float[] grown = new float[numbers.length * 2];
+                System.arraycopy(numbers, 0, grown, 0, size);
+                numbers = grown;
+            }
+            numbers[size++] = number;
+        }
+
+        public int size() {
+            return size;
         }
 
         public int getNextCmd() {
@@ -660,7 +763,7 @@ public class SVGParser {
         }
 
         public float getNumber(int index) {
-            return numbers.get(index);
+            return numbers[index];
         }
 
     }
@@ -785,6 +888,25 @@ public class SVGParser {
         }
     }
 
+    /**
+     * Records the elements of an SVG document so they can be replayed later.
+     */
+    private static class SVGRecorder extends DefaultHandler {
+
+        ArrayList<SVGTemplate.Event> events = new ArrayList<SVGTemplate.Event>();
+
+        @Override
+        public void startElement(String namespaceURI, String localName, String qName, Attributes atts) {
+            // The parser reuses its Attributes object, so keep a copy.
+            events.add(new SVGTemplate.Event(true, namespaceURI, localName, qName, new AttributesImpl(atts)));
+        }
+
+        @Override
+        public void endElement(String namespaceURI, String localName, String qName) {
+            events.add(new SVGTemplate.Event(false, namespaceURI, localName, qName, null));
+        }
+    }
+
     private static class SVGHandler extends DefaultHandler {
 
         Picture picture;
@@ -797,6 +919,10 @@ public class SVGParser {
 
         Integer searchColor = null;
         Integer replaceColor = null;
+        Map<Integer, Integer> colorSwaps = null;
+
+        // Paths already parsed from their "d" attribute, shared between renders of a template.
+        HashMap<String, Path> pathCache = null;
 
         boolean whiteMode = false;
 
@@ -808,10 +934,35 @@ public class SVGParser {
 
         Vector<Path> paths = null;
 
-        private SVGHandler(Picture picture, Vector<Path> paths) {
-            this.picture = picture;
+        private SVGHandler() {
             paint = new Paint();
+            reset(null, null);
+        }
+
+        /**
+         * Prepare the handler for a new document, clearing everything left over from the
+         * previous one.
+         */
+        public void reset(Picture picture, Vector<Path> paths) {
+            this.picture = picture;
+            canvas = null;
+            paint.reset();
             paint.setAntiAlias(true);
+            bounds = null;
+            // The previous result may still hold on to the old limits, so don't reuse them.
+            limits = new RectF(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
+            searchColor = null;
+            replaceColor = null;
+            colorSwaps = null;
+            pathCache = null;
+            whiteMode = false;
+            pushed = false;
+            gradientMap.clear();
+            gradientRefMap.clear();
+            gradient = null;
+            hidden = false;
+            hiddenLevel = 0;
+            boundsMode = false;
             this.paths = paths;
             // TODO(mtomczak): If paths is not null, need to retain
             // path every time we compute a shape.
@@ -822,6 +973,14 @@ public class SVGParser {
             this.replaceColor = replaceColor;
         }
 
+        public void setColorSwaps(Map<Integer, Integer> colorSwaps) {
+            this.colorSwaps = colorSwaps;
+        }
+
+        public void setPathCache(HashMap<String, Path> pathCache) {
+            this.pathCache = pathCache;
+        }
+
         public void setWhiteMode(boolean whiteMode) {
             this.whiteMode = whiteMode;
         }
@@ -948,6 +1107,11 @@ public class SVGParser {
             int c = (0xFFFFFF & color) | 0xFF000000;
             if (searchColor != null && searchColor.intValue() == c) {
                 c = replaceColor;
+            } else if (colorSwaps != null) {
+                Integer swap = colorSwaps.get(c);
+                if (swap != null) {
+                    c = swap;
+                }
             }
             paint.setColor(c);
             Float opacity = atts.getFloat("opacity");
@@ -1171,14 +1335,13 @@ public class SVGParser {
                 NumberParse numbers = getNumberParseAttr("points", atts);
                 if (numbers != null) {
                     Path p = new Path();
-                    ArrayList<Float> points = numbers.numbers;
-                    if (points.size() > 1) {
+                    if (numbers.size() > 1) {
                         pushTransform(atts);
                         Properties props = new Properties(atts);
-                        p.moveTo(points.get(0), points.get(1));
-                        for (int i = 2; i < points.size(); i += 2) {
-                            float x = points.get(i);
-                            float y = points.get(i + 1);
+                        p.moveTo(numbers.getNumber(0), numbers.getNumber(1));
+                        for (int i = 2; i + 1 < numbers.size(); i += 2) {
+                            float x = numbers.getNumber(i);
+                            float y = numbers.getNumber(i + 1);
                             p.lineTo(x, y);
                         }
                         // Don't close a polyline
@@ -1199,7 +1362,7 @@ public class SVGParser {
                     }
                 }
             } else if (!hidden && localName.equals("path")) {
-                Path p = doPath(getStringAttr("d", atts));
+                Path p = getPath(getStringAttr("d", atts));
                 pushTransform(atts);
                 Properties props = new Properties(atts);
                 if (doFill(props, gradientMap)) {
@@ -1218,6 +1381,21 @@ public class SVGParser {
             }
         }
 
+        private Path getPath(String d) {
+            if (pathCache == null) {
+                return doPath(d);
+            }
+            // Templates can be rendered on several threads at once, each with its own handler.
+            synchronized (pathCache) {
+                Path p = pathCache.get(d);
+                if (p == null) {
+                    p = doPath(d);
+                    pathCache.put(d, p);
+                }
+                return p;
+            }
+        }
+
         @Override
         public void characters(char ch[], int start, int length) {
             // no-op
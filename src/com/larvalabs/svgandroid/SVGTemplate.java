@@ -0,0 +1,106 @@
+package com.larvalabs.svgandroid;
+
+import android.graphics.Path;
+
+import org.xml.sax.Attributes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+/**
+ * A parsed SVG document that can be rendered into any number of {@link SVG} objects, each with
+ * its own color substitutions, without parsing the XML again.
+ *
+ * Use {@link SVGParser#getSVGTemplateFromResource(android.content.res.Resources, int)} or
+ * {@link SVGParser#getSVGTemplateFromInputStream(java.io.InputStream)} to create one.
+ *
+ * @author Mark T. Tomczak
+ */
+public class SVGTemplate {
+
+    /**
+     * A recorded start or end of an element.
+     */
+    static class Event {
+        final boolean start;
+        final String namespaceURI;
+        final String localName;
+        final String qName;
+        final Attributes atts;
+
+        Event(boolean start, String namespaceURI, String localName, String qName, Attributes atts) {
+            this.start = start;
+            this.namespaceURI = namespaceURI;
+            this.localName = localName;
+            this.qName = qName;
+            this.atts = atts;
+        }
+    }
+
+    /**
+     * The elements of the document, in document order.
+     */
+    final ArrayList<Event> events;
+
+    /**
+     * Paths parsed while rendering, keyed by their path data, so later renders can reuse them.
+     * Renders on different threads share it, so access is synchronized on the map. The paths
+     * themselves are only read once cached.
+     */
+    final HashMap<String, Path> pathCache = new HashMap<String, Path>();
+
+    SVGTemplate(ArrayList<Event> events) {
+        this.events = events;
+    }
+
+    /**
+     * Render the template without any color substitution.
+     * @return the rendered SVG.
+     * @throws SVGParseException if there is an error while rendering.
+     */
+    public SVG createSVG() throws SVGParseException {
+        return SVGParser.renderTemplate(this, null);
+    }
+
+    /**
+     * Render the template, replacing a single color with another color.
+     * @param searchColor  the color in the SVG to replace.
+     * @param replaceColor the color with which to replace the search color.
+     * @return the rendered SVG.
+     * @throws SVGParseException if there is an error while rendering.
+     */
+    public SVG createSVG(int searchColor, int replaceColor) throws SVGParseException {
+        HashMap<Integer, Integer> colorSwaps = new HashMap<Integer, Integer>();
+        colorSwaps.put(searchColor, replaceColor);
+        return SVGParser.renderTemplate(this, colorSwaps);
+    }
+
+    /**
+     * Render the template, replacing colors according to a substitution map.
+     * @param colorSwaps map from colors in the SVG to the colors replacing them.
+     * @return the rendered SVG.
+     * @throws SVGParseException if there is an error while rendering.
+     */
+    public SVG createSVG(Map<Integer, Integer> colorSwaps) throws SVGParseException {
+        return SVGParser.renderTemplate(this, colorSwaps);
+    }
+}
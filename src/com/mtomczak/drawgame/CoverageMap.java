@@ -0,0 +1,174 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * Counts the painted pixels of the painting, per tile.
+ *
+ * A pixel is painted unless it is background: white, or fully transparent.
+ * Changes mark the tiles they touch stale, and update() recounts only the
+ * stale tiles, so the total is always at hand without scanning the whole
+ * bitmap. Tiles known to be wiped to white are zeroed without a recount.
+ *
+ * Uses the same tiles as TileGrid.
+ */
+public class CoverageMap {
+  private static final int TILE_SIZE = TileGrid.TILE_SIZE;
+  private static final int WHITE = 0xffffffff;
+
+  private int width_ = 0;
+  private int height_ = 0;
+  private int columns_ = 0;
+  private int rows_ = 0;
+  private int counts_[] = new int[0];
+  private boolean stale_[] = new boolean[0];
+  private int staleCount_ = 0;
+  private long total_ = 0;
+  private final int pixels_[] = new int[TILE_SIZE * TILE_SIZE];
+
+  /** @brief Sets the size of the area covered, and marks every tile stale.
+   *
+   * @param width Width, in pixels.
+   * @param height Height, in pixels.
+   */
+  public void resize(int width, int height) {
+    width_ = width;
+    height_ = height;
+    columns_ = (width + TILE_SIZE - 1) / TILE_SIZE;
+    rows_ = (height + TILE_SIZE - 1) / TILE_SIZE;
+    if (counts_.length < columns_ * rows_) {
+      counts_ = new int[columns_ * rows_];
+      stale_ = new boolean[columns_ * rows_];
+    }
+    for (int i = 0; i < columns_ * rows_; i++) {
+      counts_[i] = 0;
+      stale_[i] = true;
+    }
+    staleCount_ = columns_ * rows_;
+    total_ = 0;
+  }
+
+  /** @brief Marks the tiles overlapping a rectangle stale.
+   *
+   * @param bounds Changed area, in pixels; clipped to the painting.
+   */
+  public void markStale(Rect bounds) {
+    if (bounds.right <= 0 || bounds.bottom <= 0 ||
+	bounds.left >= width_ || bounds.top >= height_) {
+      return;
+    }
+    int left = Math.max(bounds.left, 0) / TILE_SIZE;
+    int top = Math.max(bounds.top, 0) / TILE_SIZE;
+    int right = (Math.min(bounds.right, width_) - 1) / TILE_SIZE;
+    int bottom = (Math.min(bounds.bottom, height_) - 1) / TILE_SIZE;
+    for (int row = top; row <= bottom; row++) {
+      for (int column = left; column <= right; column++) {
+	int tile = row * columns_ + column;
+	if (!stale_[tile]) {
+	  stale_[tile] = true;
+	  staleCount_++;
+	}
+      }
+    }
+  }
+
+  /** @brief Records that a rectangle was filled with white.
+   *
+   * Tiles entirely inside it are zeroed; tiles it only overlaps are marked
+   * stale.
+   *
+   * @param bounds Wiped area, in pixels.
+   */
+  public void markBlank(Rect bounds) {
+    markStale(bounds);
+    // Tiles entirely inside the bounds; the painting's edge counts as inside.
+    int left = (Math.max(bounds.left, 0) + TILE_SIZE - 1) / TILE_SIZE;
+    int top = (Math.max(bounds.top, 0) + TILE_SIZE - 1) / TILE_SIZE;
+    int right = bounds.right >= width_ ? columns_ : bounds.right / TILE_SIZE;
+    int bottom = bounds.bottom >= height_ ? rows_ : bounds.bottom / TILE_SIZE;
+    for (int row = top; row < bottom; row++) {
+      for (int column = left; column < right; column++) {
+	int tile = row * columns_ + column;
+	total_ -= counts_[tile];
+	counts_[tile] = 0;
+	if (stale_[tile]) {
+	  stale_[tile] = false;
+	  staleCount_--;
+	}
+      }
+    }
+  }
+
+  /** @brief Recounts the stale tiles.
+   *
+   * @param bitmap The painting.
+   */
+  public void update(Bitmap bitmap) {
+    if (staleCount_ == 0) {
+      return;
+    }
+    for (int row = 0; row < rows_; row++) {
+      for (int column = 0; column < columns_; column++) {
+	int tile = row * columns_ + column;
+	if (stale_[tile]) {
+	  int count = count(bitmap, column, row);
+	  total_ += count - counts_[tile];
+	  counts_[tile] = count;
+	  stale_[tile] = false;
+	}
+      }
+    }
+    staleCount_ = 0;
+  }
+
+  /** Check whether the painting is blank.
+   *
+   * @return True if nothing is painted; false if something is, or if tiles
+   *     changed since the last update().
+   */
+  public boolean isEmpty() {
+    return total_ == 0 && staleCount_ == 0;
+  }
+
+  /** Get the painted fraction of the painting.
+   *
+   * @return From 0 for blank to 1 for fully painted, as of the last update().
+   */
+  public float getCoverage() {
+    long area = (long)width_ * height_;
+    return area == 0 ? 0.0f : (float)total_ / area;
+  }
+
+  private int count(Bitmap bitmap, int column, int row) {
+    int x = column * TILE_SIZE;
+    int y = row * TILE_SIZE;
+    int width = Math.min(TILE_SIZE, width_ - x);
+    int height = Math.min(TILE_SIZE, height_ - y);
+    bitmap.getPixels(pixels_, 0, width, x, y, width, height);
+    int count = 0;
+    for (int i = 0; i < width * height; i++) {
+      int pixel = pixels_[i];
+      if (pixel != WHITE && pixel != 0) {
+	count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,161 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Picture;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+/**
+ * Pre-rasterized strip of crayon images.
+ *
+ * Each crayon Picture is rendered once into a selected and an unselected
+ * sprite, and the sprites are composed top-to-bottom into a single strip
+ * bitmap. Changing the selection only re-copies the two affected slots, so
+ * drawing the palette is one bitmap blit instead of replaying every Picture.
+ *
+ * Unselected crayons are drawn shifted left by the unselected indent, so the
+ * selected one appears to stick out of the gutter.
+ */
+public class CrayonPalette {
+  private final Picture images_[];
+  private final int unselectedIndent_;
+
+  /** Top of each slot in the strip. */
+  private final int slotTops_[];
+  private final int width_;
+  private final int height_;
+
+  private Bitmap selectedSprites_[] = null;
+  private Bitmap unselectedSprites_[] = null;
+  private Bitmap strip_ = null;
+  private Canvas stripCanvas_ = null;
+  /** Copies sprites over the strip, transparent pixels included. */
+  private final Paint copyPaint_;
+
+  private int selected_ = 0;
+
+  /** @brief Constructor.
+   *
+   * @param images Picture of each crayon, top to bottom.
+   * @param unselectedIndent How far left unselected crayons are shifted.
+   */
+  public CrayonPalette(Picture images[], int unselectedIndent) {
+    images_ = images;
+    unselectedIndent_ = unselectedIndent;
+    slotTops_ = new int[images.length];
+    int width = 0;
+    int top = 0;
+    for (int i = 0; i < images.length; i++) {
+      slotTops_[i] = top;
+      top += images[i].getHeight();
+      width = Math.max(width, images[i].getWidth());
+    }
+    width_ = width;
+    height_ = top;
+    copyPaint_ = new Paint();
+    copyPaint_.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+  }
+
+  /** @brief Sets the selected crayon.
+   *
+   * @param crayon Index of the selected crayon.
+   */
+  public void setSelected(int crayon) {
+    if (crayon == selected_) {
+      return;
+    }
+    int previous = selected_;
+    selected_ = crayon;
+    if (strip_ != null) {
+      drawSlot(previous);
+      drawSlot(selected_);
+    }
+  }
+
+  /** @brief Draws the palette.
+   *
+   * The strip is built the first time the palette is drawn.
+   *
+   * @param canvas Canvas to draw into.
+   * @param left Left edge of the palette.
+   * @param top Top edge of the palette.
+   */
+  public void draw(Canvas canvas, float left, float top) {
+    if (strip_ == null) {
+      build();
+    }
+    canvas.drawBitmap(strip_, left, top, null);
+  }
+
+  /** @brief Gets the bounds of a crayon slot, relative to the palette.
+   *
+   * @param crayon Index of the crayon.
+   * @param bounds Set to the bounds of the slot.
+   */
+  public void getSlotBounds(int crayon, Rect bounds) {
+    bounds.set(0, slotTops_[crayon],
+	       width_, slotTops_[crayon] + images_[crayon].getHeight());
+  }
+
+  /** @brief Renders the sprites and the strip.
+   */
+  private void build() {
+    selectedSprites_ = new Bitmap[images_.length];
+    unselectedSprites_ = new Bitmap[images_.length];
+    for (int i = 0; i < images_.length; i++) {
+      selectedSprites_[i] = renderSprite(images_[i], 0);
+      unselectedSprites_[i] = renderSprite(images_[i], -unselectedIndent_);
+    }
+    strip_ = Bitmap.createBitmap(
+      Math.max(width_, 1), Math.max(height_, 1), Bitmap.Config.ARGB_8888);
+    stripCanvas_ = new Canvas(strip_);
+    for (int i = 0; i < images_.length; i++) {
+      drawSlot(i);
+    }
+  }
+
+  /** @brief Renders one crayon into a sprite as wide as the strip.
+   *
+   * @param image Picture of the crayon.
+   * @param offset Horizontal offset of the picture within the sprite.
+   * @return The sprite.
+   */
+  private Bitmap renderSprite(Picture image, int offset) {
+    Bitmap sprite = Bitmap.createBitmap(
+      Math.max(width_, 1), Math.max(image.getHeight(), 1),
+      Bitmap.Config.ARGB_8888);
+    Canvas canvas = new Canvas(sprite);
+    canvas.translate(offset, 0);
+    image.draw(canvas);
+    return sprite;
+  }
+
+  /** @brief Copies the sprite for the crayon's current state into its slot.
+   *
+   * @param crayon Index of the crayon.
+   */
+  private void drawSlot(int crayon) {
+    Bitmap sprite = (crayon == selected_) ?
+      selectedSprites_[crayon] : unselectedSprites_[crayon];
+    stripCanvas_.drawBitmap(sprite, 0, slotTops_[crayon], copyPaint_);
+  }
+}
@@ -25,10 +25,12 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Picture;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
+import android.os.SystemClock;
 import android.view.MotionEvent;
 import android.view.View;
 import android.util.AttributeSet;
@@ -36,28 +38,53 @@ import android.util.Log;
 
 import com.larvalabs.svgandroid.SVGParser;
 import com.larvalabs.svgandroid.SVG;
+import com.larvalabs.svgandroid.SVGTemplate;
 
 import java.lang.StringBuilder;
-import java.util.Date;
 import java.util.Enumeration;
 import java.util.Formatter;
-import java.util.HashMap;
 import java.util.Random;
 import java.util.Vector;
 
 public class DrawView extends View
-  implements View.OnTouchListener {
+  implements View.OnTouchListener, ShakeMonitor.Listener {
+  private static final String TAG = "DrawView";
 
+  private PaintingSurface surface_ = new PaintingSurface();
   private Canvas painting_canvas_;
   private Bitmap painting_bitmap_;
   private RandomSound squeakSounds_ = null;
   private RandomSound shakeSounds_ = null;
-  private OscillationSensor oscillatorX_ = null;
-  private OscillationSensor oscillatorY_ = null;
-  private FaceDownSensor facedown_ = null;
-  private Random randomSource_ = null;
+  private ShakeMonitor shakeMonitor_ = null;
+  private ShakeEraser shakeEraser_ = null;
+  private StrokeJournal journal_ = null;
+  private PaintingSnapshot snapshot_ = null;
+  /** Set when the painting still has to be restored onto the surface. */
+  private boolean restorePending_ = false;
+  /** Tiles of the painting changed since the last snapshot. */
+  private TileGrid tiles_ = new TileGrid();
 
-  private long lastShakeTimestamp_ = 0;
+  /** Default size of the undo history, in bytes of compressed tiles. */
+  private static final int UNDO_BUDGET_BYTES = 4 * 1024 * 1024;
+  private UndoHistory history_ = new UndoHistory(UNDO_BUDGET_BYTES);
+  /** Undo step owner of shake-erasing; pointers own steps by their id. */
+  private static final int SHAKE_UNDO_OWNER =
+    MultiTouchTracker.MAX_POINTER_ID + 1;
+  /** Marks and journals the tiles restored by undo and redo. */
+  private UndoHistory.TileListener restoredTiles_;
+
+  /** Frame interval while shake-erasing; no frames run otherwise. */
+  private static final long SHAKE_FRAME_MILLIS = 1000 / 20;
+  /** Shake volume last set; it only changes in noticeable steps. */
+  private float shakeVolume_ = 1.0f;
+  /** Set while shaking a blank painting, which erases nothing and stays
+   * quiet. */
+  private boolean shakeSilenced_ = false;
+  /** Painted pixels per tile, so a blank painting is known without a scan. */
+  private CoverageMap coverage_ = new CoverageMap();
+  /** Size coverage_ was last set to: the visible part of the painting. */
+  private int coverageWidth_ = 0;
+  private int coverageHeight_ = 0;
 
   private static final int CRAYON_IMAGE_TOP_OFFSET = 100;
   private static final int CRAYON_UNSELECTED_INDENT = 15;
@@ -88,21 +115,80 @@ public class DrawView extends View
   private static final int ERASER_ID = 8;
   private int selected_crayon_ = 0;
 
+  private Paint crayon_paints_[];
+  private Paint gutterPaint_;
+  private Paint erasePaint_;
+
   private Picture crayon_images_[];
+  private CrayonPalette palette_;
   private float crayon_gutter_ = 0;
   private float crayon_height_ = 0;
 
+  /** Scratch rectangle for the bounds touched by a mutation. */
+  private Rect dirty_ = new Rect();
+  /** Bounds of one blot of a shake-erase batch. */
+  private Rect blotBounds_ = new Rect();
+  /** Area an erase blot is sure to have wiped white. */
+  private Rect wipedBounds_ = new Rect();
+  /** Scratch rectangle for the region being redrawn by onDraw. */
+  private Rect redraw_ = new Rect();
+
+  /** Timings of the recent frames. */
+  private static final int FRAME_STATS_CAPACITY = 600;
+  private static final long FRAME_BUDGET_NANOS = 1000000000L / 60;
+  private FrameStats frameStats_ =
+    new FrameStats(FRAME_STATS_CAPACITY, FRAME_BUDGET_NANOS);
+
+  /** Pixels composited by the last frame, and in total. */
+  private long lastFramePixels_ = 0;
+  private long totalPixels_ = 0;
+  private long frameCount_ = 0;
+
   private MultiTouchTracker touchTracker_;
-  private HashMap<Integer, Path> drawPaths_;
+
+  /** Guards the painting and everything drawn into it, once touch samples
+   * may be drawn on the render thread. */
+  private final Object paintLock_ = new Object();
+  /** Samples waiting for the render thread; null when drawing on the UI
+   * thread. Only touched on the UI thread. */
+  private TouchEventQueue touchQueue_ = null;
+  private RenderThread renderThread_ = null;
+  private TouchEventQueue.Consumer touchConsumer_;
+  private RenderThread.Renderer renderer_;
+  private static final int TOUCH_QUEUE_CAPACITY = 4096;
+  /** Most queued events the render thread handles per hold of paintLock_. */
+  private static final int RENDER_BATCH = 128;
+  /** Touch-to-frame latency of drag samples, in milliseconds. */
+  private LatencyHistogram latency_ = new LatencyHistogram();
+  /** Event times of the drag samples not yet shown; the first drawnSamples_
+   * of them are on the painting, waiting for the next frame. */
+  private long sampleTimes_[] = new long[1024];
+  private int pendingSamples_ = 0;
+  private int drawnSamples_ = 0;
+  /** Drag samples that found sampleTimes_ full, not yet in latency_. */
+  private int droppedSamples_ = 0;
+  /** Drops of touchQueue_ already counted in latency_. */
+  private int queueDropsCounted_ = 0;
+  private boolean latencyOverlay_ = false;
+  private Paint overlayPaint_;
+  private char overlayText_[] = new char[128];
+  private Rect overlayBounds_ = new Rect();
+  private static final float OVERLAY_TEXT_SIZE = 24.0f;
+
+  /** Draws the strokes once per frame when drawing on the UI thread. */
+  private FrameScheduler strokeFlusher_;
+  /** Stroke of each pointer, indexed by pointer id. */
+  private Stroke strokes_[];
 
   public DrawView(Context context, AttributeSet attrs) {
     super(context, attrs);
     crayon_images_ = new Picture[CRAYON_COLORS.length];
+    // Parse the crayon once, and recolor it for each crayon.
+    SVGTemplate crayon = SVGParser.getSVGTemplateFromResource(
+      getResources(), R.raw.crayon);
     int i;
     for (i = 0; i < CRAYON_COLORS.length - 1; i++) {
-      crayon_images_[i] = SVGParser.getSVGFromResource(
-	getResources(),
-	R.raw.crayon,
+      crayon_images_[i] = crayon.createSVG(
 	Color.rgb(0, 0, 0),
 	CRAYON_COLORS[i]).getPicture();
     }
@@ -113,8 +199,33 @@ public class DrawView extends View
       Color.rgb(229, 119, 196)).getPicture();  // pink
     crayon_gutter_ = crayon_images_[0].getWidth();
     crayon_height_ = crayon_images_[0].getHeight();
+    palette_ = new CrayonPalette(crayon_images_, CRAYON_UNSELECTED_INDENT);
+    palette_.setSelected(selected_crayon_);
 
-    drawPaths_ = new HashMap<Integer, Path>();
+    // Paints are built once up front, so drawing never allocates.
+    crayon_paints_ = new Paint[CRAYON_COLORS.length];
+    for (i = 0; i < CRAYON_COLORS.length; i++) {
+      crayon_paints_[i] = new Paint();
+      crayon_paints_[i].setColor(CRAYON_COLORS[i]);
+      crayon_paints_[i].setStyle(Paint.Style.STROKE);
+      crayon_paints_[i].setStrokeWidth(CRAYON_WIDTHS[i]);
+    }
+    gutterPaint_ = new Paint();
+    gutterPaint_.setColor(Color.BLACK);
+    gutterPaint_.setStyle(Paint.Style.STROKE);
+    gutterPaint_.setStrokeWidth(2.0f);
+    erasePaint_ = new Paint();
+    erasePaint_.setColor(Color.WHITE);
+    erasePaint_.setStyle(Paint.Style.STROKE);
+    overlayPaint_ = new Paint();
+    overlayPaint_.setColor(Color.BLACK);
+    overlayPaint_.setTextSize(OVERLAY_TEXT_SIZE);
+    overlayPaint_.setTypeface(Typeface.MONOSPACE);
+
+    strokes_ = new Stroke[MultiTouchTracker.MAX_POINTER_ID + 1];
+    for (i = 0; i < strokes_.length; i++) {
+      strokes_[i] = new Stroke();
+    }
     touchTracker_ = new MultiTouchTracker() {
 	@Override
 	public void onInteractionStart() {
@@ -132,13 +243,24 @@ public class DrawView extends View
 
 	@Override
 	public void onTouchStart(int id, MotionEvent.PointerCoords event) {
-	  Path p = new Path();
-	  p.moveTo(Math.max(event.x, crayon_gutter_), event.y);
-	  drawPaths_.put(id, p);
+	  float x = Math.max(event.x, crayon_gutter_);
+	  if (touchQueue_ != null) {
+	    touchQueue_.putTouchStart(id, x, event.y);
+	    return;
+	  }
+	  synchronized (paintLock_) {
+	    touchStarted(id, x, event.y);
+	  }
 	}
 
 	public void onTouchStop(int id) {
-	  drawPaths_.remove(id);
+	  if (touchQueue_ != null) {
+	    touchQueue_.putTouchStop(id);
+	    return;
+	  }
+	  synchronized (paintLock_) {
+	    touchStopped(id);
+	  }
 	}
 
 	@Override
@@ -146,26 +268,231 @@ public class DrawView extends View
 	  int pointerId,
 	  MotionEvent.PointerCoords currentEvent,
 	  MotionEvent.PointerCoords prevEvent) {
-	  if (currentEvent.x <= crayon_gutter_) {
-	    selectNewCrayon(currentEvent.y);
+	  if (touchQueue_ != null) {
+	    touchQueue_.putDrag(pointerId, currentEvent.x, currentEvent.y,
+				getEventTime());
+	    return;
+	  }
+	  synchronized (paintLock_) {
+	    touchDragged(pointerId, currentEvent.x, currentEvent.y,
+			 getEventTime());
+	  }
+	  strokeFlusher_.schedule();
+	}
+
+	@Override
+	public void onDragBatch(
+	  int pointerId,
+	  MotionEvent.PointerCoords[] samples,
+	  int count,
+	  MotionEvent.PointerCoords prevEvent) {
+	  if (touchQueue_ != null) {
+	    for (int i = 0; i < count; i++) {
+	      touchQueue_.putDrag(pointerId, samples[i].x, samples[i].y,
+				  getBatchEventTime(i));
+	    }
+	    return;
+	  }
+	  synchronized (paintLock_) {
+	    for (int i = 0; i < count; i++) {
+	      touchDragged(pointerId, samples[i].x, samples[i].y,
+			   getBatchEventTime(i));
+	    }
+	  }
+	  strokeFlusher_.schedule();
+	}
+      };
+    touchConsumer_ = new TouchEventQueue.Consumer() {
+	@Override
+	public void onTouchStart(int id, float x, float y) {
+	  touchStarted(id, x, y);
+	}
+
+	@Override
+	public void onDrag(int id, float x, float y, long eventTime) {
+	  touchDragged(id, x, y, eventTime);
+	}
+
+	@Override
+	public void onTouchStop(int id) {
+	  touchStopped(id);
+	}
+      };
+    // Samples pile up in the strokes until the next frame, which draws each
+    // stroke once however many move events arrived in between.
+    strokeFlusher_ = new FrameScheduler(new Runnable() {
+	@Override
+	public void run() {
+	  synchronized (paintLock_) {
+	    flushAllStrokes();
 	  }
-	  else {
-	    if (drawPaths_.containsKey(pointerId)) {
-	      Paint paint = new Paint();
-	      paint.setColor(CRAYON_COLORS[selected_crayon_]);
-	      paint.setStyle(Paint.Style.STROKE);
-	      paint.setStrokeWidth(CRAYON_WIDTHS[selected_crayon_]);
-
-	      Path p = drawPaths_.get(pointerId);
-	      p.lineTo(Math.max(currentEvent.x, crayon_gutter_), currentEvent.y);
-	      painting_canvas_.drawPath(p, paint);
-	      invalidate();
+	}
+      });
+    renderer_ = new RenderThread.Renderer() {
+	@Override
+	public void render(TouchEventQueue queue) {
+	  // Take the lock for one batch at a time, so onDraw and the UI thread
+	  // never wait behind a long backlog.
+	  int drained;
+	  do {
+	    synchronized (paintLock_) {
+	      drained = queue.drain(touchConsumer_, RENDER_BATCH);
+	      // One draw per stroke for everything in the batch.
+	      flushAllStrokes();
 	    }
+	  } while (drained == RENDER_BATCH);
+	}
+      };
+    restoredTiles_ = new UndoHistory.TileListener() {
+	@Override
+	public void onTileRestored(int column, int row, int width, int height,
+				   byte data[]) {
+	  if (journal_ != null) {
+	    journal_.recordTile(column, row, width, height, data);
 	  }
+	  tileChanged(column, row, width, height);
+	  invalidate(dirty_);
 	}
       };
   }
 
+  /** @brief Starts the stroke of a pointer, and records it.
+   * @param id Pointer id.
+   * @param x x-coordinate of the first point, already clear of the gutter.
+   * @param y y-coordinate of the first point.
+   */
+  private void touchStarted(int id, float x, float y) {
+    if (strokes_[id].isActive()) {
+      // A start without a stop; end the old stroke so its undo step closes.
+      touchStopped(id);
+    }
+    if (journal_ != null) {
+      journal_.recordTouchStart(id, x, y, selected_crayon_,
+				CRAYON_WIDTHS[selected_crayon_]);
+    }
+    // Strokes that overlap in time undo together.
+    history_.begin(id);
+    strokes_[id].start(x, y);
+  }
+
+  /** @brief Adds a drag sample to the stroke of a pointer, without drawing
+   * it, and records it.
+   * @param id Pointer id.
+   * @param x x-coordinate of the sample.
+   * @param y y-coordinate of the sample.
+   * @param eventTime Time the sample was taken, in uptimeMillis.
+   */
+  private void touchDragged(int id, float x, float y, long eventTime) {
+    if (journal_ != null) {
+      journal_.recordDrag(id, x, y);
+    }
+    addStrokePoint(strokes_[id], x, y);
+    if (pendingSamples_ < sampleTimes_.length) {
+      sampleTimes_[pendingSamples_++] = eventTime;
+    } else {
+      droppedSamples_++;
+    }
+  }
+
+  /** @brief Ends the stroke of a pointer, and records it.
+   * @param id Pointer id.
+   */
+  private void touchStopped(int id) {
+    if (journal_ != null) {
+      journal_.recordTouchStop(id);
+    }
+    // Draw the other strokes too, so every pending sample is on the
+    // painting.
+    flushAllStrokes();
+    stopStroke(strokes_[id]);
+    history_.end(id, painting_bitmap_);
+  }
+
+  /** @brief Adds a drag sample to a stroke, or selects a crayon if the sample
+   * is in the gutter.
+   * @param stroke Stroke of the pointer.
+   * @param x x-coordinate of the sample.
+   * @param y y-coordinate of the sample.
+   */
+  private void addStrokePoint(Stroke stroke, float x, float y) {
+    if (x <= crayon_gutter_) {
+      // Whatever was added so far belongs to the old crayon.
+      flushAllStrokes();
+      selectNewCrayon(y);
+    } else if (stroke.isActive()) {
+      stroke.lineTo(x, y);
+    }
+  }
+
+  /** @brief Draws what is left of a stroke and ends it.
+   * @param stroke Stroke to end.
+   */
+  private void stopStroke(Stroke stroke) {
+    flushStroke(stroke);
+    stroke.stop();
+  }
+
+  /** @brief Draws the pending part of every stroke.
+   */
+  private void flushAllStrokes() {
+    for (int i = 0; i < strokes_.length; i++) {
+      flushStroke(strokes_[i]);
+    }
+    drawnSamples_ = pendingSamples_;
+  }
+
+  /** @brief Draws the pending part of a stroke with the selected crayon.
+   * @param stroke Stroke to draw.
+   */
+  private void flushStroke(Stroke stroke) {
+    Paint paint = crayon_paints_[selected_crayon_];
+    if (history_.isRecording() && stroke.getPendingBounds(paint, dirty_)) {
+      history_.capture(painting_bitmap_, dirty_);
+    }
+    if (stroke.flush(
+	  painting_canvas_, crayon_paints_[selected_crayon_], dirty_)) {
+      tiles_.markDirty(dirty_);
+      coverage_.markStale(dirty_);
+      invalidatePainting(dirty_);
+    }
+  }
+
+  /** @brief Invalidates part of the view from the UI or the render thread.
+   * @param bounds Area to redraw.
+   */
+  private void invalidatePainting(Rect bounds) {
+    if (Thread.currentThread() == renderThread_) {
+      postInvalidate(bounds.left, bounds.top, bounds.right, bounds.bottom);
+    } else {
+      invalidate(bounds);
+    }
+  }
+
+  /** @brief Moves the drawing of touch samples to a render thread, or back
+   * to the UI thread.
+   *
+   * With the render thread enabled, the UI thread only queues the samples it
+   * receives. Disabling it draws whatever is still queued first.
+   *
+   * @param enabled True to draw on the render thread.
+   */
+  public void setRenderThreadEnabled(boolean enabled) {
+    if (enabled == (renderThread_ != null)) {
+      return;
+    }
+    if (enabled) {
+      touchQueue_ = new TouchEventQueue(TOUCH_QUEUE_CAPACITY);
+      queueDropsCounted_ = 0;
+      renderThread_ = new RenderThread(touchQueue_, renderer_);
+      renderThread_.start();
+    } else {
+      renderThread_.quit();
+      renderThread_ = null;
+      countDroppedSamples();
+      touchQueue_ = null;
+    }
+  }
+
   public void setSqueakSounds(RandomSound sound_source) {
     squeakSounds_ = sound_source;
   }
@@ -174,76 +501,557 @@ public class DrawView extends View
     shakeSounds_ = sound_source;
   }
 
-  public void setShakeSensors(
-    OscillationSensor oscillatorX,
-    OscillationSensor oscillatorY) {
-    oscillatorX_ = oscillatorX;
-    oscillatorY_ = oscillatorY;
+  public void setShakeMonitor(ShakeMonitor shakeMonitor) {
+    shakeMonitor_ = shakeMonitor;
+    shakeMonitor_.setListener(this);
   }
 
-  public void setFaceDownSensor(FaceDownSensor facedown) {
-    facedown_ = facedown;
+  @Override
+    public void onShakeErasingChanged(boolean erasing) {
+    if (erasing) {
+      boolean blank;
+      // The whole burst undoes as one step.
+      synchronized (paintLock_) {
+	history_.begin(SHAKE_UNDO_OWNER);
+	if (shakeEraser_ != null) {
+	  shakeEraser_.start(SystemClock.uptimeMillis());
+	}
+	coverage_.update(painting_bitmap_);
+	blank = coverage_.isEmpty();
+      }
+      shakeSilenced_ = blank;
+      if (shakeSounds_ != null && !blank) {
+	shakeSounds_.play();
+      }
+      // Start the erase frames; onDraw keeps them going while erasing.
+      postInvalidate();
+    } else {
+      synchronized (paintLock_) {
+	history_.end(SHAKE_UNDO_OWNER, painting_bitmap_);
+      }
+      shakeSilenced_ = false;
+      if (shakeSounds_ != null) {
+	shakeSounds_.pause();
+      }
+    }
+  }
+
+  /** @brief Silences or resumes the shake sounds while shake-erasing.
+   */
+  private void setShakeSilenced(boolean silenced) {
+    if (silenced == shakeSilenced_) {
+      return;
+    }
+    shakeSilenced_ = silenced;
+    if (shakeSounds_ != null) {
+      if (silenced) {
+	shakeSounds_.pause();
+      } else {
+	shakeSounds_.play();
+      }
+    }
+  }
+
+  /** @brief Reverts the last stroke, or shake-erase burst.
+   *
+   * @return True if anything was undone. Nothing is undone while drawing or
+   *     erasing.
+   */
+  public boolean undo() {
+    synchronized (paintLock_) {
+      return painting_bitmap_ != null &&
+	history_.undo(painting_bitmap_, restoredTiles_);
+    }
+  }
+
+  /** @brief Re-applies the last undone stroke, or shake-erase burst.
+   *
+   * @return True if anything was redone.
+   */
+  public boolean redo() {
+    synchronized (paintLock_) {
+      return painting_bitmap_ != null &&
+	history_.redo(painting_bitmap_, restoredTiles_);
+    }
+  }
+
+  /** @brief Sets how much memory the undo history may use, dropping the
+   * current history.
+   *
+   * @param bytes Budget, in bytes of compressed tiles.
+   */
+  public void setUndoBudget(int bytes) {
+    synchronized (paintLock_) {
+      history_ = new UndoHistory(bytes);
+    }
   }
 
   public void setRandomSource(Random random) {
-    randomSource_ = random;
+    shakeEraser_ = new ShakeEraser(random);
+  }
+
+  /** @brief Sets the journal that records changes to the painting.
+   *
+   * Must be called before the view is first measured; the journal is
+   * replayed onto the painting as soon as the painting surface exists.
+   *
+   * @param journal Journal to replay and record into.
+   */
+  public void setJournal(StrokeJournal journal) {
+    journal_ = journal;
+    restorePending_ = true;
+  }
+
+  /** @brief Sets the snapshot the painting is saved to and restored from.
+   *
+   * Must be called before the view is first measured; the snapshot is
+   * restored, before the journal is replayed, as soon as the painting
+   * surface exists.
+   *
+   * @param snapshot Snapshot to restore from and save to.
+   */
+  public void setSnapshot(PaintingSnapshot snapshot) {
+    snapshot_ = snapshot;
+    restorePending_ = true;
+  }
+
+  /** @brief Saves the painting to the snapshot, and drops the journal
+   * records the snapshot now covers.
+   */
+  public void saveSnapshot() {
+    synchronized (paintLock_) {
+      if (snapshot_ == null || painting_bitmap_ == null) {
+	return;
+      }
+      flushAllStrokes();
+      if (!snapshot_.save(painting_bitmap_, tiles_, selected_crayon_) ||
+	  journal_ == null) {
+	return;
+      }
+      journal_.checkpoint();
+      // Strokes in progress continue after the checkpoint; give them a
+      // start.
+      for (int i = 0; i < strokes_.length; i++) {
+	Stroke stroke = strokes_[i];
+	if (stroke.isActive()) {
+	  journal_.recordTouchStart(i, stroke.getLastX(), stroke.getLastY(),
+				    selected_crayon_,
+				    CRAYON_WIDTHS[selected_crayon_]);
+	}
+      }
+    }
+  }
+
+  /** @brief Restores the painting from the snapshot, then replays the
+   * journal on top of it.
+   *
+   * This runs on the UI thread, from onMeasure, so a long replay delays the
+   * first frame and can trigger an ANR. The journal only holds what was
+   * drawn since the last saveSnapshot(), which runs on every pause, so the
+   * replay is bounded by one visit to the app rather than by the age of the
+   * painting. How long it took is logged.
+   */
+  private void restorePainting() {
+    restorePending_ = false;
+    long start = SystemClock.uptimeMillis();
+    if (snapshot_ != null &&
+	snapshot_.restore(painting_bitmap_, painting_canvas_)) {
+      selectCrayon(snapshot_.getSelectedCrayon());
+      tiles_.clear();
+    }
+    long restored = SystemClock.uptimeMillis();
+    if (journal_ != null) {
+      replayJournal();
+    }
+    long replayed = SystemClock.uptimeMillis();
+    Log.i(TAG, "Restored snapshot in " + (restored - start) +
+	  " ms, replayed journal in " + (replayed - restored) + " ms");
+    invalidate();
+  }
+
+  /** @brief Redraws the journaled changes onto the painting.
+   *
+   * Strokes are drawn once per touch stop rather than per sample, which keeps
+   * the replay of a long session fast.
+   */
+  private void replayJournal() {
+    journal_.replay(new StrokeCodec.Listener() {
+	@Override
+	public void onTouchStart(
+	  int id, float x, float y, int crayon, float width) {
+	  if (id < strokes_.length) {
+	    // Other strokes may still hold points drawn with the old crayon.
+	    flushAllStrokes();
+	    selectCrayon(crayon);
+	    strokes_[id].start(x, y);
+	  }
+	}
+
+	@Override
+	public void onDrag(int id, float x, float y) {
+	  if (id < strokes_.length) {
+	    addStrokePoint(strokes_[id], x, y);
+	  }
+	}
+
+	@Override
+	public void onTouchStop(int id) {
+	  if (id < strokes_.length) {
+	    stopStroke(strokes_[id]);
+	  }
+	}
+
+	@Override
+	public void onEraseBlot(float x, float y, float width) {
+	  flushAllStrokes();
+	  eraseBlot(x, y, width);
+	}
+
+	@Override
+	public void onTile(int column, int row, int width, int height,
+			   byte data[], int offset, int length) {
+	  flushAllStrokes();
+	  if (history_.restoreTile(painting_bitmap_, column, row, width, height,
+				   data, offset, length)) {
+	    tileChanged(column, row, width, height);
+	  }
+	}
+      });
+    // Strokes still in progress when the journal ended never got a stop.
+    for (int i = 0; i < strokes_.length; i++) {
+      stopStroke(strokes_[i]);
+    }
   }
 
   @Override
     protected void onDraw (Canvas canvas) {
     super.onDraw(canvas);
 
-    canvas.drawBitmap(painting_bitmap_, new Matrix(), null);
-    Paint gutterPaint = new Paint();
-    gutterPaint.setColor(Color.BLACK);
-    gutterPaint.setStyle(Paint.Style.STROKE);
-    gutterPaint.setStrokeWidth(2.0f);
+    frameStats_.beginFrame();
+    // Check status of shake. Frames are only scheduled while erasing, so the
+    // view stays idle the rest of the time. The next frame shows the blots.
+    long now = SystemClock.uptimeMillis();
+    if (shakeMonitor_ != null && shakeEraser_ != null &&
+	shakeMonitor_.isErasing(now)) {
+      synchronized (paintLock_) {
+	coverage_.update(painting_bitmap_);
+	if (coverage_.isEmpty()) {
+	  // Nothing left to erase: go quiet, and only check back now and then
+	  // so the monitor notices the shaking end.
+	  setShakeSilenced(true);
+	  postInvalidateDelayed(ShakeMonitor.SHAKE_TIMEOUT_MILLIS, 0, 0, 1, 1);
+	} else {
+	  setShakeSilenced(false);
+	  eraseDueBlots(now);
+	}
+      }
+    }
+    frameStats_.endPhase(FrameStats.PHASE_ERASE);
+
+    // Only composite the region that was invalidated. The lock is released
+    // between the erase and the blit so the render thread can get in.
+    if (!canvas.getClipBounds(redraw_)) {
+      redraw_.set(0, 0, surface_.getWidth(), surface_.getHeight());
+    }
+    synchronized (paintLock_) {
+      canvas.drawBitmap(painting_bitmap_, redraw_, redraw_, null);
+    }
+    lastFramePixels_ = (long)redraw_.width() * redraw_.height();
+    totalPixels_ += lastFramePixels_;
+    frameCount_++;
+    frameStats_.endPhase(FrameStats.PHASE_BLIT);
+
     canvas.drawLine(
       crayon_gutter_, 0,
       crayon_gutter_, canvas.getHeight(),
-      gutterPaint);
+      gutterPaint_);
+    // The render thread changes the selected crayon and the pending samples.
+    synchronized (paintLock_) {
+      drawCrayons(canvas);
+      frameStats_.endPhase(FrameStats.PHASE_PALETTE);
+      recordSampleLatencies();
+    }
+    if (latencyOverlay_) {
+      drawLatencyOverlay(canvas);
+    }
+    frameStats_.endFrame();
+  }
 
-    // Check status of shake.
-    if (oscillatorX_ != null) {
-      Date d = new Date();
+  /** Get the timings of the recent frames.
+   *
+   * Read it on the UI thread; FrameStats.dump() writes them to a file.
+   *
+   * @return Per-phase onDraw timings and the count of frames over budget.
+   */
+  public FrameStats getFrameStats() {
+    return frameStats_;
+  }
 
-      if (facedown_.isFacedown() &&
-	  (d.getTime() - oscillatorX_.getLastOscillationTimestamp() <= 500 ||
-	   d.getTime() - oscillatorY_.getLastOscillationTimestamp() <= 500)) {
-	shakeSounds_.play();
-	eraseOneBlot();
-      } else {
-	shakeSounds_.pause();
+  /** @brief Records the latency of the samples this frame shows.
+   */
+  private void recordSampleLatencies() {
+    countDroppedSamples();
+    if (drawnSamples_ == 0) {
+      return;
+    }
+    long now = SystemClock.uptimeMillis();
+    for (int i = 0; i < drawnSamples_; i++) {
+      latency_.record(now - sampleTimes_[i]);
+    }
+    System.arraycopy(sampleTimes_, drawnSamples_, sampleTimes_, 0,
+		     pendingSamples_ - drawnSamples_);
+    pendingSamples_ -= drawnSamples_;
+    drawnSamples_ = 0;
+    if (latencyOverlay_) {
+      // Refresh the overlay on the next frame with the new numbers.
+      postInvalidate(overlayBounds_.left, overlayBounds_.top,
+		     overlayBounds_.right, overlayBounds_.bottom);
+    }
+  }
+
+  /** @brief Adds the drag samples lost since the last call to latency_.
+   */
+  private void countDroppedSamples() {
+    long dropped = droppedSamples_;
+    droppedSamples_ = 0;
+    if (touchQueue_ != null) {
+      int queueDrops = touchQueue_.getDroppedDrags();
+      dropped += queueDrops - queueDropsCounted_;
+      queueDropsCounted_ = queueDrops;
+    }
+    if (dropped > 0) {
+      latency_.recordDropped(dropped);
+    }
+  }
+
+  /** @brief Draws the latency percentiles in the top right corner.
+   */
+  private void drawLatencyOverlay(Canvas canvas) {
+    int length = 0;
+    length = appendText(overlayText_, length, "p50 ");
+    length = appendNumber(overlayText_, length, latency_.getPercentile(50));
+    length = appendText(overlayText_, length, " p90 ");
+    length = appendNumber(overlayText_, length, latency_.getPercentile(90));
+    length = appendText(overlayText_, length, " p99 ");
+    length = appendNumber(overlayText_, length, latency_.getPercentile(99));
+    length = appendText(overlayText_, length, " ms n=");
+    length = appendNumber(overlayText_, length, latency_.getCount());
+    length = appendText(overlayText_, length, " lost=");
+    length = appendNumber(overlayText_, length, latency_.getDropped());
+
+    float width = overlayPaint_.measureText(overlayText_, 0, length);
+    int right = surface_.getWidth();
+    overlayBounds_.set(
+      (int)(right - width) - 1, 0, right, (int)(OVERLAY_TEXT_SIZE * 1.5f));
+    canvas.drawText(overlayText_, 0, length, right - width,
+		    OVERLAY_TEXT_SIZE, overlayPaint_);
+  }
+
+  private static int appendText(char buffer[], int length, String text) {
+    text.getChars(0, text.length(), buffer, length);
+    return length + text.length();
+  }
+
+  private static int appendNumber(char buffer[], int length, long value) {
+    int start = length;
+    do {
+      buffer[length++] = (char)('0' + (value % 10));
+      value /= 10;
+    } while (value > 0);
+    // Digits came out backwards.
+    for (int i = start, j = length - 1; i < j; i++, j--) {
+      char c = buffer[i];
+      buffer[i] = buffer[j];
+      buffer[j] = c;
+    }
+    return length;
+  }
+
+  /** Get the touch-to-frame latency of drag samples.
+   *
+   * Each sample counts from its MotionEvent time to the onDraw of the frame
+   * that first shows it. Samples lost to a full buffer are counted in
+   * getDropped() instead. Read it on the UI thread.
+   *
+   * @return Histogram of latencies, in milliseconds.
+   */
+  public LatencyHistogram getLatencyHistogram() {
+    return latency_;
+  }
+
+  /** @brief Shows or hides the latency percentiles on top of the painting.
+   * @param enabled True to show them.
+   */
+  public void setLatencyOverlayEnabled(boolean enabled) {
+    latencyOverlay_ = enabled;
+    invalidate();
+  }
+
+  /** Get the number of pixels composited by the last frame.
+   *
+   * @return Area, in pixels, of the region redrawn by the last onDraw.
+   */
+  public long getLastFramePixelsRedrawn() {
+    return lastFramePixels_;
+  }
+
+  /** Get the average number of pixels composited per frame.
+   *
+   * @return Average redrawn area, in pixels, over all frames so far.
+   */
+  public long getAveragePixelsRedrawn() {
+    return frameCount_ == 0 ? 0 : totalPixels_ / frameCount_;
+  }
+
+  /** Check whether the painting is blank.
+   *
+   * Only the tiles changed since the last check are recounted.
+   *
+   * @return True if nothing is painted.
+   */
+  public boolean isPaintingEmpty() {
+    synchronized (paintLock_) {
+      coverage_.update(painting_bitmap_);
+      return coverage_.isEmpty();
+    }
+  }
+
+  /** Get the painted fraction of the painting.
+   *
+   * Only the tiles changed since the last check are recounted.
+   *
+   * @return From 0 for blank to 1 for fully painted.
+   */
+  public float getCoverage() {
+    synchronized (paintLock_) {
+      coverage_.update(painting_bitmap_);
+      return coverage_.getCoverage();
+    }
+  }
+
+  /** @brief Erases the blots due by now, and schedules the next erase frame.
+   *
+   * @param now Current time, in SystemClock.uptimeMillis() milliseconds.
+   */
+  private void eraseDueBlots(long now) {
+    // Faster shaking erases more blots; harder shaking erases bigger ones,
+    // and sounds louder.
+    float intensity = shakeMonitor_.getIntensity();
+    if (!eraseBlots(shakeEraser_.plan(now, intensity,
+				      shakeMonitor_.getPace(),
+				      surface_.getWidth(),
+				      surface_.getHeight()))) {
+      // Nothing was due yet; keep the frames coming anyway.
+      dirty_.set(0, 0, 1, 1);
+    }
+    float strength = ShakeEraser.MIN_STRENGTH +
+      (1.0f - ShakeEraser.MIN_STRENGTH) * intensity;
+    if (shakeSounds_ != null && Math.abs(strength - shakeVolume_) > 0.1f) {
+      shakeVolume_ = strength;
+      shakeSounds_.setVolume(strength);
+    }
+    postInvalidateDelayed(
+      SHAKE_FRAME_MILLIS,
+      dirty_.left, dirty_.top, dirty_.right, dirty_.bottom);
+  }
+
+  /** @brief Erases the blots planned by the shake eraser in one draw call
+   *
+   * Sets dirty_ to the bounds of the blots.
+   *
+   * @param count Number of blots planned.
+   * @return True if anything was erased.
+   */
+  private boolean eraseBlots(int count) {
+    if (count == 0) {
+      return false;
+    }
+    float points[] = shakeEraser_.getPoints();
+    float width = shakeEraser_.getBlotWidth();
+    int radius = (int)(width / 2) + 1;
+    dirty_.setEmpty();
+    for (int i = 0; i < count; i++) {
+      float x = points[i * 2];
+      float y = points[i * 2 + 1];
+      if (journal_ != null) {
+	journal_.recordEraseBlot(x, y, width);
       }
+      blotBounds_.set((int)x - radius, (int)y - radius,
+		      (int)x + radius, (int)y + radius);
+      history_.capture(painting_bitmap_, blotBounds_);
+      tiles_.markDirty(blotBounds_);
+      coverageErased(x, y, width, blotBounds_);
+      dirty_.union(blotBounds_);
     }
-    drawCrayons(canvas);
+
+    erasePaint_.setStrokeWidth(width);
+    painting_canvas_.drawPoints(points, 0, count * 2, erasePaint_);
+    return true;
   }
 
-  /** @brief Erases one blot of the image
+  /** @brief Erases a blot of the image
+   *
+   * Sets dirty_ to the bounds of the blot.
+   *
+   * @param x x-coordinate of the blot center.
+   * @param y y-coordinate of the blot center.
+   * @param width Width of the blot.
    */
-  void eraseOneBlot() {
-    int x = randomSource_.nextInt(painting_canvas_.getWidth());
-    int y = randomSource_.nextInt(painting_canvas_.getHeight());
-    int blotWidth = randomSource_.nextInt(painting_canvas_.getWidth() / 2) +
-      (painting_canvas_.getWidth() / 4);
+  private void eraseBlot(float x, float y, float width) {
+    int radius = (int)(width / 2) + 1;
+    dirty_.set((int)x - radius, (int)y - radius,
+	       (int)x + radius, (int)y + radius);
+    history_.capture(painting_bitmap_, dirty_);
 
-      Paint erasePaint = new Paint();
-      erasePaint.setColor(Color.WHITE);
-      erasePaint.setStyle(Paint.Style.STROKE);
-      erasePaint.setStrokeWidth((float)blotWidth);
-      painting_canvas_.drawPoint((float)x, (float)y, erasePaint);
+    erasePaint_.setStrokeWidth(width);
+    painting_canvas_.drawPoint(x, y, erasePaint_);
+    tiles_.markDirty(dirty_);
+    coverageErased(x, y, width, dirty_);
+  }
+
+  /** @brief Updates the coverage for an erase blot.
+   *
+   * @param x x-coordinate of the blot center.
+   * @param y y-coordinate of the blot center.
+   * @param width Width of the blot.
+   * @param bounds Bounds of the blot.
+   */
+  private void coverageErased(float x, float y, float width, Rect bounds) {
+    coverage_.markStale(bounds);
+    // A point with a butt cap is a square; its inside is surely white.
+    int inner = (int)(width / 2) - 1;
+    if (inner > 0) {
+      wipedBounds_.set((int)x - inner, (int)y - inner,
+		       (int)x + inner, (int)y + inner);
+      coverage_.markBlank(wipedBounds_);
+    }
+  }
+
+  /** @brief Marks a tile whose pixels were replaced as changed.
+   *
+   * Sets dirty_ to the bounds of the tile.
+   */
+  private void tileChanged(int column, int row, int width, int height) {
+    dirty_.set(column * TileGrid.TILE_SIZE, row * TileGrid.TILE_SIZE,
+	       column * TileGrid.TILE_SIZE + width,
+	       row * TileGrid.TILE_SIZE + height);
+    tiles_.markDirty(dirty_);
+    coverage_.markStale(dirty_);
   }
 
   /** @brief Draws crayons
    */
   private void drawCrayons(Canvas canvas) {
-    canvas.translate(-CRAYON_UNSELECTED_INDENT, CRAYON_IMAGE_TOP_OFFSET);
-    for (int i = 0; i < crayon_images_.length; i++) {
-      int translate = (i == selected_crayon_) ? CRAYON_UNSELECTED_INDENT : 0;
-      canvas.translate(translate, 0);
-      crayon_images_[i].draw(canvas);
-      canvas.translate(-translate, crayon_images_[i].getHeight());
-    }
+    palette_.draw(canvas, 0, CRAYON_IMAGE_TOP_OFFSET);
+  }
+
+  /** @brief Sizes the coverage to the visible part of the painting, which
+   * is all that shaking can erase.
+   */
+  private void coverageResize() {
+    coverageWidth_ = surface_.getWidth();
+    coverageHeight_ = surface_.getHeight();
+    coverage_.resize(coverageWidth_, coverageHeight_);
   }
 
   @Override
@@ -251,8 +1059,26 @@ public class DrawView extends View
     int w = MeasureSpec.getSize(width);
     int h = MeasureSpec.getSize(height);
 
-    painting_bitmap_ = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-    painting_canvas_ = new Canvas(painting_bitmap_);
+    // Measure runs many times; the surface only reallocates when it has to
+    // grow, and keeps the painting when it does.
+    synchronized (paintLock_) {
+      if (surface_.resize(w, h)) {
+	painting_bitmap_ = surface_.getBitmap();
+	painting_canvas_ = surface_.getCanvas();
+	tiles_.resize(painting_bitmap_.getWidth(),
+		      painting_bitmap_.getHeight());
+	// Tile numbering changed with the bitmap size.
+	history_.clear();
+	coverageResize();
+	if (restorePending_) {
+	  restorePainting();
+	}
+      } else if (coverageWidth_ != surface_.getWidth() ||
+		 coverageHeight_ != surface_.getHeight()) {
+	// Rotated within the bitmap; only the visible part counts.
+	coverageResize();
+      }
+    }
 
     super.onMeasure(width, height);
   }
@@ -272,11 +1098,32 @@ public class DrawView extends View
    */
 
   void selectNewCrayon(float yCoordinate) {
-    int selected_crayon = (int)((yCoordinate - CRAYON_IMAGE_TOP_OFFSET)
-				/ crayon_height_);
-    if (selected_crayon >= 0 && selected_crayon < CRAYON_COLORS.length) {
+    selectCrayon((int)((yCoordinate - CRAYON_IMAGE_TOP_OFFSET)
+		       / crayon_height_));
+  }
+
+  /** @brief Selects a crayon by index
+   * @param selected_crayon Index of the crayon; ignored if out of range.
+   */
+  private void selectCrayon(int selected_crayon) {
+    if (selected_crayon >= 0 && selected_crayon < CRAYON_COLORS.length &&
+	selected_crayon != selected_crayon_) {
+      // Only the old and new crayon slots change.
+      getCrayonSlotBounds(selected_crayon_, dirty_);
+      invalidatePainting(dirty_);
       selected_crayon_ = selected_crayon;
-      invalidate();
+      palette_.setSelected(selected_crayon_);
+      getCrayonSlotBounds(selected_crayon_, dirty_);
+      invalidatePainting(dirty_);
     }
   }
+
+  /** @brief Gets the bounds of a crayon slot in the palette.
+   * @param crayon Index of the crayon.
+   * @param bounds Set to the bounds of the slot.
+   */
+  private void getCrayonSlotBounds(int crayon, Rect bounds) {
+    palette_.getSlotBounds(crayon, bounds);
+    bounds.offset(0, CRAYON_IMAGE_TOP_OFFSET);
+  }
 }
@@ -19,17 +19,27 @@ package com.mtomczak.drawgame;
 import android.app.Activity;
 import android.hardware.SensorManager;
 import android.os.Bundle;
+import android.util.Log;
 
 import com.mtomczak.drawgame.DrawView;
 import com.mtomczak.drawgame.OscillationSensor;
 import com.mtomczak.drawgame.FaceDownSensor;
+import com.mtomczak.drawgame.PaintingSnapshot;
 import com.mtomczak.drawgame.RandomSound;
-
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import com.mtomczak.drawgame.SensorHub;
+import com.mtomczak.drawgame.SensorScheduler;
+import com.mtomczak.drawgame.ShakeMonitor;
+import com.mtomczak.drawgame.StrokeJournal;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Random;
 
 public class Drawgame extends Activity {
+  private static final String TAG = "Drawgame";
+
   public static final int SQUEAK_SOUNDS[] = {
     R.raw.squeak1,
     R.raw.squeak2,
@@ -51,9 +61,30 @@ public class Drawgame extends Activity {
     R.raw.shaka9
   };
 
+  private SensorHub sensorHub_;
+  private SensorScheduler sensorScheduler_;
   private OscillationSensor oscillatorX_;
   private OscillationSensor oscillatorY_;
   private FaceDownSensor facedown_;
+  private DrawView drawView_;
+  private StrokeJournal journal_;
+
+  /** Names of the files that keep the painting across launches: a snapshot
+   * of the pixels, and a journal of the changes made since. */
+  private static final String SNAPSHOT_FILE = "painting.snapshot";
+  private static final String JOURNAL_FILE = "painting.journal";
+
+  /** Draw touch samples on a render thread instead of the UI thread. */
+  private static final boolean USE_RENDER_THREAD = false;
+
+  /** Let sensors with a FIFO batch their events, where the platform
+   * supports it, to wake the app less often. */
+  private static final boolean USE_SENSOR_BATCHING = true;
+
+  /** Write frame timings and sensor event rates to STATS_FILE, in the
+   * cache directory, on every pause. */
+  private static final boolean DUMP_STATS = false;
+  private static final String STATS_FILE = "stats.txt";
 
   /** Called when the activity is first created. */
   @Override
@@ -70,49 +101,80 @@ public class Drawgame extends Activity {
 
     setContentView(R.layout.main);
     final DrawView drawView = (DrawView)findViewById(R.id.drawview);
+    // One registration per physical sensor, shared by all the detectors.
+    sensorHub_ = new SensorHub(
+      (SensorManager)getSystemService(SENSOR_SERVICE));
+    sensorHub_.setBatchingEnabled(USE_SENSOR_BATCHING);
     oscillatorX_ = new OscillationSensor(
-      (SensorManager)getSystemService(SENSOR_SERVICE),
+      sensorHub_,
       5.0f,
       0 /* x-axis */);
     oscillatorY_ = new OscillationSensor(
-      (SensorManager)getSystemService(SENSOR_SERVICE),
+      sensorHub_,
       5.0f,
       1 /* y-axis */);
-    facedown_ = new FaceDownSensor(
-      (SensorManager)getSystemService(SENSOR_SERVICE));
+    facedown_ = new FaceDownSensor(sensorHub_);
+    // Only run the accelerometer fast while shaking can erase.
+    sensorScheduler_ = new SensorScheduler(sensorHub_, facedown_);
 
     drawView.setSqueakSounds(squeaks);
     drawView.setShakeSounds(shakes);
-    drawView.setShakeSensors(oscillatorX_, oscillatorY_);
-    drawView.setFaceDownSensor(facedown_);
+    drawView.setShakeMonitor(
+      new ShakeMonitor(facedown_, oscillatorX_, oscillatorY_));
     drawView.setRandomSource(new Random());
+    drawView.setSnapshot(
+      new PaintingSnapshot(new File(getFilesDir(), SNAPSHOT_FILE)));
+    journal_ = new StrokeJournal(new File(getFilesDir(), JOURNAL_FILE));
+    drawView.setJournal(journal_);
+    drawView_ = drawView;
     drawView.setOnTouchListener(drawView);
-
-    // We need to touch the render thread at least 20 fps, to detect shake
-    // events.
-    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
-    executor.scheduleAtFixedRate(
-      new Runnable() {
-	@Override
-	  public void run() {
-	  drawView.postInvalidate();
-	}
-      }, 0, 1000/20, TimeUnit.MILLISECONDS);
   }
 
   @Override
     protected void onPause() {
-    oscillatorX_.onPause();
-    oscillatorY_.onPause();
-    facedown_.onPause();
+    sensorScheduler_.onPause();
+    if (DUMP_STATS) {
+      dumpStats(new File(getCacheDir(), STATS_FILE));
+    }
+    // Draw anything still queued before saving.
+    drawView_.setRenderThreadEnabled(false);
+    // The process may be killed any time after this; get the painting out.
+    drawView_.saveSnapshot();
+    journal_.flush();
     super.onPause();
   }
 
+  @Override
+    protected void onDestroy() {
+    journal_.close();
+    super.onDestroy();
+  }
+
+  /** @brief Writes the frame and sensor stats to a file.
+   *
+   * @param file File to write; replaced if it exists.
+   */
+  private void dumpStats(File file) {
+    try {
+      PrintWriter out = new PrintWriter(new FileWriter(file));
+      try {
+	drawView_.getFrameStats().dump(out);
+	sensorScheduler_.dump(out);
+      } finally {
+	out.close();
+      }
+      if (out.checkError()) {
+	throw new IOException("Unable to write " + file);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to write stats", e);
+    }
+  }
+
   @Override
     protected void onResume() {
-    oscillatorX_.onResume();
-    oscillatorY_.onResume();
-    facedown_.onResume();
+    sensorScheduler_.onResume();
+    drawView_.setRenderThreadEnabled(USE_RENDER_THREAD);
     super.onResume();
   }
 }
@@ -17,69 +17,78 @@ Copyright 2014 Mark T. Tomczak
 package com.mtomczak.drawgame;
 
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorManager;
-import android.hardware.SensorEventListener;
-import java.util.Date;
 
 /**
  * Monitors for the device being oriented face-down.
  *
+ * The sensor listens to gravity (or, lacking that, the accelerometer) through
+ * a SensorHub, which owns the registration with SensorManager.
+ *
  * Note: This sensor can work if the physical sensor does not exist (in which
  * case, it simply always returns false).
  */
-public class FaceDownSensor implements SensorEventListener {
-  private final SensorManager sensorManager_;
-  private Sensor gravity_ = null;
-  private Sensor acceleration_ = null;
+public class FaceDownSensor implements SensorHub.Listener {
+  /**
+   * Receives a callback when the face-down status changes.
+   */
+  public interface OnFaceDownChangedListener {
+    /**
+     * Called when the device turns face-down or face-up.
+     * @param facedown True if the device is now face-down.
+     */
+    void onFaceDownChanged(boolean facedown);
+  }
+
   private boolean facedown_ = false;
+  private Sensor sensor_;
+  private OnFaceDownChangedListener listeners_[] =
+    new OnFaceDownChangedListener[0];
 
   /** @brief Constructor.
    *
-   * @param manager Sensor manager that controls the sensor of interest.
-   * @param oscillationThreshold Threshold value, in m/s^2, that can trigger an
-   * oscillation event.
-   * @param axisOfInterest Axis to monitor with this oscillation sensor.
+   * @param hub Hub delivering the sensor events.
    */
 
-  public FaceDownSensor(SensorManager manager) {
-    sensorManager_ = manager;
-    gravity_ = sensorManager_.getDefaultSensor(Sensor.TYPE_GRAVITY);
-    if (gravity_ == null) {
-      acceleration_ = sensorManager_.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-    }
-  }
-
-  public void onPause() {
-    if (gravity_ != null || acceleration_ != null) {
-      sensorManager_.unregisterListener(this);
+  public FaceDownSensor(SensorHub hub) {
+    sensor_ = hub.getSensor(Sensor.TYPE_GRAVITY);
+    if (sensor_ == null) {
+      sensor_ = hub.getSensor(Sensor.TYPE_ACCELEROMETER);
     }
+    hub.addListener(sensor_, this);
   }
 
-  public void onResume() {
-    if (gravity_ != null) {
-      sensorManager_.registerListener(
-	this, gravity_,
-	SensorManager.SENSOR_DELAY_NORMAL);
-    }
-    else if (acceleration_ != null) {
-      sensorManager_.registerListener(
-	this, acceleration_,
-	SensorManager.SENSOR_DELAY_NORMAL);
-    }
+  public void addOnFaceDownChangedListener(
+    OnFaceDownChangedListener listener) {
+    OnFaceDownChangedListener listeners[] =
+      new OnFaceDownChangedListener[listeners_.length + 1];
+    System.arraycopy(listeners_, 0, listeners, 0, listeners_.length);
+    listeners[listeners_.length] = listener;
+    listeners_ = listeners;
   }
 
-  @Override
-    public void onSensorChanged(SensorEvent event) {
-      facedown_ = event.values[2] < 0.0f;
+  /** Get the sensor the face-down status comes from.
+   *
+   * @return The gravity sensor, the accelerometer, or null if there is
+   *     neither.
+   */
+  Sensor getSensor() {
+    return sensor_;
   }
 
   @Override
-    public void onAccuracyChanged(Sensor sensor, int accuary) {
-    /* ignored */
+    public void onSensorBatch(Sensor sensor, int count, long timestamps[],
+			      float values[]) {
+    // Only the latest orientation of a burst matters.
+    boolean facedown = values[(count - 1) * SensorHub.VALUES_PER_EVENT + 2] <
+      0.0f;
+    if (facedown != facedown_) {
+      facedown_ = facedown;
+      for (int i = 0; i < listeners_.length; i++) {
+	listeners_[i].onFaceDownChanged(facedown);
+      }
+    }
   }
 
-
   /** Get facedown status
    *
    * @return True if we are facedown.
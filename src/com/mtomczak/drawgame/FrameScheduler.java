@@ -0,0 +1,105 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+
+/**
+ * Runs a callback once on the next display frame, however many times it was
+ * scheduled before that.
+ *
+ * Frames come from Choreographer where it exists (API 16 and up); older
+ * platforms fall back to a Handler delay of one frame at 60 Hz. Must be used
+ * from a thread with a Looper, normally the UI thread.
+ */
+public class FrameScheduler {
+  private static final long FALLBACK_FRAME_MILLIS = 1000 / 60;
+
+  private final Runnable callback_;
+  private boolean scheduled_ = false;
+
+  /** Choreographer hook; null on platforms without Choreographer. */
+  private final VsyncHook vsync_;
+  /** Fallback hook for older platforms. */
+  private final Handler handler_;
+  private final Runnable fallback_;
+
+  /** @brief Constructor.
+   *
+   * @param callback Run on the UI thread at the next frame.
+   */
+  public FrameScheduler(Runnable callback) {
+    callback_ = callback;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+      vsync_ = new VsyncHook(this);
+      handler_ = null;
+      fallback_ = null;
+    } else {
+      vsync_ = null;
+      handler_ = new Handler();
+      fallback_ = new Runnable() {
+	  @Override
+	    public void run() {
+	    onFrame();
+	  }
+	};
+    }
+  }
+
+  /** @brief Asks for the callback to run at the next frame, unless it already
+   * will.
+   */
+  public void schedule() {
+    if (scheduled_) {
+      return;
+    }
+    scheduled_ = true;
+    if (vsync_ != null) {
+      vsync_.post();
+    } else {
+      handler_.postDelayed(fallback_, FALLBACK_FRAME_MILLIS);
+    }
+  }
+
+  private void onFrame() {
+    scheduled_ = false;
+    callback_.run();
+  }
+
+  /**
+   * Choreographer access, in its own class so older platforms never load
+   * it.
+   */
+  private static class VsyncHook implements Choreographer.FrameCallback {
+    private final FrameScheduler scheduler_;
+
+    VsyncHook(FrameScheduler scheduler) {
+      scheduler_ = scheduler;
+    }
+
+    void post() {
+      Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    @Override
+      public void doFrame(long frameTimeNanos) {
+      scheduler_.onFrame();
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import java.io.PrintWriter;
+
+/**
+ * Per-phase timings of the most recent frames.
+ *
+ * Each frame is split into phases that are timed with System.nanoTime; the
+ * timings of the last few frames are kept in preallocated rings, so
+ * collecting them never allocates. Frames whose total time exceeds the frame
+ * budget are counted as dropped.
+ */
+public class FrameStats {
+  /** Shake check and erase blot. */
+  public static final int PHASE_ERASE = 0;
+  /** Compositing the painting. */
+  public static final int PHASE_BLIT = 1;
+  /** Gutter line and crayons. */
+  public static final int PHASE_PALETTE = 2;
+  public static final int PHASE_COUNT = 3;
+  private static final String PHASE_NAMES[] = { "erase", "blit", "palette" };
+
+  private final long budgetNanos_;
+  private final long phaseNanos_[][];
+  private final long frameNanos_[];
+  /** Next slot of the rings, and number of valid slots. */
+  private int next_ = 0;
+  private int size_ = 0;
+
+  private long frames_ = 0;
+  private long overBudget_ = 0;
+
+  /** Start of the frame being timed, and of its current phase. */
+  private long frameStart_ = 0;
+  private long phaseStart_ = 0;
+
+  /** @brief Constructor.
+   *
+   * @param capacity Number of frames to keep.
+   * @param budgetNanos Longest a frame may take before it counts as dropped.
+   */
+  public FrameStats(int capacity, long budgetNanos) {
+    budgetNanos_ = budgetNanos;
+    phaseNanos_ = new long[PHASE_COUNT][capacity];
+    frameNanos_ = new long[capacity];
+  }
+
+  /** @brief Starts timing a frame.
+   */
+  public void beginFrame() {
+    frameStart_ = System.nanoTime();
+    phaseStart_ = frameStart_;
+    for (int phase = 0; phase < PHASE_COUNT; phase++) {
+      phaseNanos_[phase][next_] = 0;
+    }
+  }
+
+  /** @brief Ends a phase; its time runs from the end of the previous phase
+   * (or the start of the frame).
+   *
+   * @param phase The phase that just ended.
+   */
+  public void endPhase(int phase) {
+    long now = System.nanoTime();
+    phaseNanos_[phase][next_] += now - phaseStart_;
+    phaseStart_ = now;
+  }
+
+  /** @brief Ends the frame.
+   */
+  public void endFrame() {
+    long total = System.nanoTime() - frameStart_;
+    frameNanos_[next_] = total;
+    next_ = (next_ + 1) % frameNanos_.length;
+    if (size_ < frameNanos_.length) {
+      size_++;
+    }
+    frames_++;
+    if (total > budgetNanos_) {
+      overBudget_++;
+    }
+  }
+
+  /** Get the number of frames timed.
+   *
+   * @return Frames since construction.
+   */
+  public long getFrameCount() {
+    return frames_;
+  }
+
+  /** Get the number of frames that exceeded the budget.
+   *
+   * @return Dropped frames since construction.
+   */
+  public long getOverBudgetCount() {
+    return overBudget_;
+  }
+
+  /** @brief Writes a summary and the per-phase times of the kept frames,
+   * oldest frame first.
+   *
+   * @param out Where to write; the caller checks it for errors.
+   */
+  public void dump(PrintWriter out) {
+    out.println("frames " + frames_ + " over_budget " + overBudget_ +
+		" budget_us " + budgetNanos_ / 1000);
+    for (int phase = 0; phase < PHASE_COUNT; phase++) {
+      long sum = 0;
+      long max = 0;
+      for (int i = 0; i < size_; i++) {
+	long nanos = phaseNanos_[phase][i];
+	sum += nanos;
+	max = Math.max(max, nanos);
+      }
+      out.println(PHASE_NAMES[phase] + " avg_us " +
+		  (size_ == 0 ? 0 : sum / size_ / 1000) +
+		  " max_us " + max / 1000);
+    }
+    out.print("frame_us");
+    for (int phase = 0; phase < PHASE_COUNT; phase++) {
+      out.print(" " + PHASE_NAMES[phase] + "_us");
+    }
+    out.println();
+    int first = (next_ - size_ + frameNanos_.length) % frameNanos_.length;
+    for (int i = 0; i < size_; i++) {
+      int slot = (first + i) % frameNanos_.length;
+      out.print(frameNanos_[slot] / 1000);
+      for (int phase = 0; phase < PHASE_COUNT; phase++) {
+	out.print(" " + phaseNanos_[phase][slot] / 1000);
+      }
+      out.println();
+    }
+  }
+}
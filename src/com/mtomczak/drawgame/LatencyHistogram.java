@@ -0,0 +1,134 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+/**
+ * Histogram of non-negative values in a fixed number of log-scaled buckets.
+ *
+ * Values below LINEAR_LIMIT get a bucket each; above that, every power of two
+ * is split into SUB_BUCKETS buckets, so a percentile reads at most
+ * 1 / SUB_BUCKETS (about 3%) above its value. Recording never allocates.
+ */
+public class LatencyHistogram {
+  static final int SUB_BUCKET_BITS = 5;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  /** Values below this get exact buckets. It must be at least SUB_BUCKETS,
+   * so no power of two is split finer than one value per bucket. */
+  private static final int LINEAR_BITS = SUB_BUCKET_BITS;
+  static final int LINEAR_LIMIT = 1 << LINEAR_BITS;
+  /** Long.MAX_VALUE is below 2^63, so powers up to 2^62 are enough. */
+  static final int BUCKETS = LINEAR_LIMIT + (63 - LINEAR_BITS) * SUB_BUCKETS;
+
+  private final long counts_[] = new long[BUCKETS];
+  private long count_ = 0;
+  private long max_ = 0;
+  private long dropped_ = 0;
+
+  /** @brief Adds a value.
+   *
+   * @param value Value to add; negative values count as 0.
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts_[bucketOf(value)]++;
+    count_++;
+    if (value > max_) {
+      max_ = value;
+    }
+  }
+
+  /** @brief Gets a percentile of the recorded values.
+   *
+   * @param percent Percentile to get, from 0 to 100.
+   * @return Upper bound of the bucket holding the percentile (capped at the
+   *     largest value seen), or 0 if nothing was recorded.
+   */
+  public long getPercentile(double percent) {
+    if (count_ == 0) {
+      return 0;
+    }
+    long rank = (long)Math.ceil(percent / 100.0 * count_);
+    if (rank < 1) {
+      rank = 1;
+    }
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts_[i];
+      if (seen >= rank) {
+	return Math.min(upperBoundOf(i), max_);
+      }
+    }
+    return max_;
+  }
+
+  /** Get the number of recorded values.
+   *
+   * @return Number of values recorded.
+   */
+  public long getCount() {
+    return count_;
+  }
+
+  /** @brief Counts values that were lost before they could be recorded.
+   *
+   * @param dropped Number of values lost.
+   */
+  public void recordDropped(long dropped) {
+    dropped_ += dropped;
+  }
+
+  /** Get the number of values lost before they could be recorded.
+   *
+   * The percentiles do not include them.
+   *
+   * @return Number of values lost.
+   */
+  public long getDropped() {
+    return dropped_;
+  }
+
+  /** @brief Gets the bucket a value falls in.
+   *
+   * @param value Non-negative value.
+   * @return Index of the bucket, below BUCKETS.
+   */
+  static int bucketOf(long value) {
+    if (value < LINEAR_LIMIT) {
+      return (int)value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_LIMIT + (exponent - LINEAR_BITS) * SUB_BUCKETS + sub;
+  }
+
+  /** @brief Gets the largest value a bucket holds.
+   *
+   * @param bucket Index of the bucket.
+   * @return Largest value that bucketOf() puts in the bucket.
+   */
+  static long upperBoundOf(int bucket) {
+    if (bucket < LINEAR_LIMIT) {
+      return bucket;
+    }
+    int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+    int sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return (1L << exponent) + (sub + 1) * width - 1;
+  }
+}
@@ -17,18 +17,45 @@ Copyright 2014 Mark T. Tomczak
 package com.mtomczak.drawgame;
 
 import android.view.MotionEvent;
-import java.util.HashMap;
 
 /**
  * Tracks multiple touch events.
  *
  * Override the abstract methods to handle the touch event.
+ *
+ * Pointer state lives in a fixed table indexed by pointer id, and all
+ * coordinate objects are reused, so tracking does not allocate. The coords
+ * passed to the callbacks are only valid for the duration of the call.
  */
 public abstract class MultiTouchTracker {
-  private HashMap<Integer, MotionEvent.PointerCoords> touches_;
+  /** Largest pointer id that MotionEvent hands out. */
+  public static final int MAX_POINTER_ID = 31;
+
+  /** Last known coords of each pointer, indexed by pointer id. */
+  private final MotionEvent.PointerCoords[] touches_;
+  /** Whether each pointer id is currently down. */
+  private final boolean[] tracking_;
+  private int trackingCount_ = 0;
+
+  /** Scratch coords for the pointer of a down or up event. */
+  private final MotionEvent.PointerCoords current_;
+
+  /** Scratch samples for replaying a pointer's batched move history. */
+  private MotionEvent.PointerCoords[] batch_;
+  /** Event times of the samples in batch_, in uptimeMillis. */
+  private long[] batchTimes_;
+  /** Event time of the sample being handed to a callback. */
+  private long eventTime_ = 0;
 
   public MultiTouchTracker() {
-    touches_ = new HashMap<Integer, MotionEvent.PointerCoords>();
+    touches_ = new MotionEvent.PointerCoords[MAX_POINTER_ID + 1];
+    for (int i = 0; i < touches_.length; i++) {
+      touches_[i] = new MotionEvent.PointerCoords();
+    }
+    tracking_ = new boolean[MAX_POINTER_ID + 1];
+    current_ = new MotionEvent.PointerCoords();
+    batch_ = new MotionEvent.PointerCoords[0];
+    batchTimes_ = new long[0];
   }
 
   /**
@@ -39,46 +66,68 @@ public abstract class MultiTouchTracker {
   public boolean onTouchEvent(MotionEvent event) {
     int idx = event.getActionIndex();
     int id = -1;
-    MotionEvent.PointerCoords coords;
+    eventTime_ = event.getEventTime();
 
     switch(event.getActionMasked()) {
     case MotionEvent.ACTION_DOWN:
     case MotionEvent.ACTION_POINTER_DOWN:
-      coords = new MotionEvent.PointerCoords();
       id = event.getPointerId(idx);
-      event.getPointerCoords(idx, coords);
-      if (touches_.isEmpty()) {
+      if (!isValidId(id)) {
+	return true;
+      }
+      event.getPointerCoords(idx, current_);
+      if (trackingCount_ == 0) {
 	onInteractionStart();
       }
-      onTouchStart(id, coords);
-      doDrag(id, coords);
+      onTouchStart(id, current_);
+      doDrag(id, current_);
       return true;
     case MotionEvent.ACTION_UP:
     case MotionEvent.ACTION_POINTER_UP:
-      coords = new MotionEvent.PointerCoords();
       id = event.getPointerId(idx);
-      event.getPointerCoords(idx, coords);
-      doDrag(id, coords);
+      if (!isValidId(id) || !tracking_[id]) {
+	return true;
+      }
+      event.getPointerCoords(idx, current_);
+      doDrag(id, current_);
       onTouchStop(id);
-      touches_.remove(id);
-      if (touches_.isEmpty()) {
+      tracking_[id] = false;
+      trackingCount_--;
+      if (trackingCount_ == 0) {
 	onInteractionStop();
       }
       return true;
     case MotionEvent.ACTION_MOVE:
+      // Move events batch up the samples since the last event; replay all of
+      // them so fast strokes keep their shape.
+      int historySize = event.getHistorySize();
+      ensureBatchCapacity(historySize + 1);
+      for (int h = 0; h < historySize; h++) {
+	batchTimes_[h] = event.getHistoricalEventTime(h);
+      }
+      batchTimes_[historySize] = event.getEventTime();
       for (int i = 0; i < event.getPointerCount(); i++) {
-	coords = new MotionEvent.PointerCoords();
 	id = event.getPointerId(i);
-	event.getPointerCoords(i, coords);
-	doDrag(id, coords);
+	if (!isValidId(id)) {
+	  continue;
+	}
+	for (int h = 0; h < historySize; h++) {
+	  event.getHistoricalPointerCoords(i, h, batch_[h]);
+	}
+	event.getPointerCoords(i, batch_[historySize]);
+	doDragBatch(id, historySize + 1);
       }
       return true;
     case MotionEvent.ACTION_CANCEL:
-      if (!touches_.isEmpty()) {
-	// TODO(mtomczak): Should probably onTouchStop all the outstanding
-	// events here.
+      if (trackingCount_ > 0) {
+	for (int i = 0; i < tracking_.length; i++) {
+	  if (tracking_[i]) {
+	    onTouchStop(i);
+	    tracking_[i] = false;
+	  }
+	}
+	trackingCount_ = 0;
 	onInteractionStop();
-	touches_.clear();
       }
       return true;
     default:
@@ -92,15 +141,82 @@ public abstract class MultiTouchTracker {
    * @param currentEvent PointerCoords event we are handling.
    */
   private void doDrag(int id, MotionEvent.PointerCoords currentEvent) {
-    if (touches_.containsKey(id)) {
-      MotionEvent.PointerCoords prevEvent = touches_.get(id);
-      onDrag(id, currentEvent, prevEvent);
-      prevEvent.copyFrom(currentEvent);
+    if (tracking_[id]) {
+      onDrag(id, currentEvent, touches_[id]);
+    } else {
+      startTracking(id);
+    }
+    touches_[id].copyFrom(currentEvent);
+  }
+
+  /**
+   * Handle a batch of drag samples for one pointer.
+   * @param id Unique ID of the pointer being dragged.
+   * @param count Number of samples in batch_.
+   */
+  private void doDragBatch(int id, int count) {
+    if (tracking_[id]) {
+      onDragBatch(id, batch_, count, touches_[id]);
     } else {
-      touches_.put(id, currentEvent);
+      startTracking(id);
+    }
+    touches_[id].copyFrom(batch_[count - 1]);
+  }
+
+  /**
+   * Mark a pointer id as down.
+   * @param id Unique ID of the pointer.
+   */
+  private void startTracking(int id) {
+    tracking_[id] = true;
+    trackingCount_++;
+  }
+
+  /**
+   * Check that a pointer id fits in the pointer table.
+   * @param id Pointer id reported by the event.
+   * @return True if the id can be tracked.
+   */
+  private static boolean isValidId(int id) {
+    return id >= 0 && id <= MAX_POINTER_ID;
+  }
+
+  /**
+   * Grow the batch scratch array to hold at least the given number of samples.
+   * @param capacity Number of samples needed.
+   */
+  private void ensureBatchCapacity(int capacity) {
+    if (batch_.length < capacity) {
+      MotionEvent.PointerCoords[] batch =
+	new MotionEvent.PointerCoords[capacity];
+      for (int i = 0; i < capacity; i++) {
+	batch[i] = (i < batch_.length) ?
+	  batch_[i] : new MotionEvent.PointerCoords();
+      }
+      batch_ = batch;
+      batchTimes_ = new long[capacity];
     }
   }
 
+  /**
+   * Get the event time of the sample being handled. Valid during
+   * onTouchStart, onTouchStop and onDrag.
+   * @return Time the sample was taken, in the uptimeMillis time base.
+   */
+  public long getEventTime() {
+    return eventTime_;
+  }
+
+  /**
+   * Get the event time of a sample of the batch being handled. Valid during
+   * onDragBatch.
+   * @param sample Index of the sample in the batch.
+   * @return Time the sample was taken, in the uptimeMillis time base.
+   */
+  public long getBatchEventTime(int sample) {
+    return batchTimes_[sample];
+  }
+
   /**
    * Called when the first touch event starts.
    */
@@ -134,4 +250,30 @@ public abstract class MultiTouchTracker {
     int pointerId,
     MotionEvent.PointerCoords currentEvent,
     MotionEvent.PointerCoords prevEvent);
+
+  /**
+   * Called when a move event delivers a batch of samples for a pointer. The
+   * samples are in chronological order, the last one being the current
+   * position of the pointer.
+   *
+   * The default implementation calls onDrag once per sample. Override it to
+   * handle the whole batch at once.
+   * @param pointerId Unique ID of the pointer.
+   * @param samples The pointer coords of the samples. Only the first count
+   *     entries are valid, and they are only valid during the call.
+   * @param count Number of samples in the batch.
+   * @param prevEvent The pointer coords of the event before the batch. The
+   *     default implementation advances it through the samples as it goes.
+   */
+  public void onDragBatch(
+    int pointerId,
+    MotionEvent.PointerCoords[] samples,
+    int count,
+    MotionEvent.PointerCoords prevEvent) {
+    for (int i = 0; i < count; i++) {
+      eventTime_ = batchTimes_[i];
+      onDrag(pointerId, samples[i], prevEvent);
+      prevEvent.copyFrom(samples[i]);
+    }
+  }
 }
@@ -17,17 +17,14 @@ Copyright 2014 Mark T. Tomczak
 package com.mtomczak.drawgame;
 
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorManager;
-import android.hardware.SensorEventListener;
-import java.util.Date;
 
 /**
  * Given an accelerometer, monitors the sensor for oscillatory behavior.
  *
- * The oscillator reports the last time it detected an oscillation (defined as
- * a transition from one direction to another where a given oscillation was over
- * a threshold value). The threshold value is defined at construction time.
+ * A flip is a transition from one direction to another where the new
+ * direction is over a threshold value, defined at construction time. The
+ * oscillator reports an oscillation when it has seen at least MIN_FLIPS flips
+ * within WINDOW_NANOS, so a single bump does not count.
  *
  *	   A---+   A---+
  *         |   |   |   |
@@ -35,84 +32,208 @@ import java.util.Date;
  *     |   |   |   |   |   |
  *     A---+   A---+   A---+
  *
- * ... Each point marked 'A' in the above graph indicates an oscillation event
- * report.
+ * ... Each point marked 'A' in the above graph indicates a flip.
+ *
+ * The recent samples and flips are kept in fixed-size rings, from which the
+ * sensor also measures the frequency and energy of the shaking, without
+ * allocating per event.
+ *
+ * The sensor listens to the accelerometer through a SensorHub, which owns the
+ * registration with SensorManager. Events may arrive in bursts when the
+ * hub batches them; a burst is scanned in one pass.
  *
  * Note: This sensor can work if the physical sensor does not exist (in which
  * case, it never reports oscillation).
  */
-public class OscillationSensor implements SensorEventListener {
+public class OscillationSensor implements SensorHub.Listener {
+  /**
+   * Receives a callback every time an oscillation is detected.
+   */
+  public interface OnOscillationListener {
+    /**
+     * Called when an oscillation is detected.
+     * @param sensor The sensor that detected the oscillation.
+     */
+    void onOscillation(OscillationSensor sensor);
+  }
+
+  /** Span of recent samples the frequency and energy are measured over, in
+   * nanoseconds. */
+  public static final long WINDOW_NANOS = 1000000000L;
+  /** Flips needed within WINDOW_NANOS to count as oscillating. */
+  public static final int MIN_FLIPS = 3;
+
+  /** Ring sizes; powers of two. SAMPLE_RING covers WINDOW_NANOS at
+   * SENSOR_DELAY_GAME. */
+  private static final int SAMPLE_RING = 64;
+  private static final int FLIP_RING = 16;
+
   private float oscillationThreshold_ = 0.0f;
-  private final SensorManager sensorManager_;
-  private Sensor accelerometer_ = null;
   private final int axisOfInterest_;
 
   /** Either 1, -1, or 0. */
   private int lastOscillationDirection_ = 0;
 
-  /** Last timestamp of an oscillation event in milliseconds. */
-  private long lastTimestampMillis_ = 0;
+  /** Timestamp of the sensor event of the last oscillation, in
+   * nanoseconds. */
+  private long lastTimestampNanos_ = 0;
+
+  /** Recent samples of the axis, and their timestamps. */
+  private final long sampleTimes_[] = new long[SAMPLE_RING];
+  private final float sampleValues_[] = new float[SAMPLE_RING];
+  private long samples_ = 0;
+  /** Timestamps of recent flips. */
+  private final long flipTimes_[] = new long[FLIP_RING];
+  private long flips_ = 0;
+
+  /** Measured over the window ending at the latest sample. */
+  private float frequencyHz_ = 0.0f;
+  private float energy_ = 0.0f;
+
+  private OnOscillationListener listener_ = null;
 
   /** @brief Constructor.
    *
-   * @param manager Sensor manager that controls the sensor of interest.
+   * @param hub Hub delivering the accelerometer events.
    * @param oscillationThreshold Threshold value, in m/s^2, that can trigger an
    * oscillation event.
    * @param axisOfInterest Axis to monitor with this oscillation sensor.
    */
 
   public OscillationSensor(
-    SensorManager manager,
+    SensorHub hub,
     float oscillationThreshold,
     int axisOfInterest) {
-    sensorManager_ = manager;
     oscillationThreshold_ = oscillationThreshold;
     axisOfInterest_ = axisOfInterest;
 
-    accelerometer_ = sensorManager_.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+    hub.addListener(hub.getSensor(Sensor.TYPE_ACCELEROMETER), this);
   }
 
-  public void onPause() {
-    if (accelerometer_ != null) {
-      sensorManager_.unregisterListener(this);
-    }
+  public void setOnOscillationListener(OnOscillationListener listener) {
+    listener_ = listener;
   }
 
-  public void onResume() {
-    if (accelerometer_ != null) {
-      sensorManager_.registerListener(this, accelerometer_,
-				      SensorManager.SENSOR_DELAY_NORMAL);
+  @Override
+    public void onSensorBatch(Sensor sensor, int count, long timestamps[],
+			      float values[]) {
+    boolean oscillated = false;
+    int index = axisOfInterest_;
+    for (int i = 0; i < count; i++, index += SensorHub.VALUES_PER_EVENT) {
+      float value = values[index];
+      long timestamp = timestamps[i];
+      int slot = (int)samples_ & (SAMPLE_RING - 1);
+      sampleTimes_[slot] = timestamp;
+      sampleValues_[slot] = value;
+      samples_++;
+
+      if (Math.abs(value) > oscillationThreshold_ && (
+	    (value < 0.0f && lastOscillationDirection_ >= 0) ||
+	    (value > 0.0f && lastOscillationDirection_ <= 0))) {
+	if (value > 0.0f) {
+	  lastOscillationDirection_ = 1;
+	} else {
+	  lastOscillationDirection_ = -1;
+	}
+	flipTimes_[(int)flips_ & (FLIP_RING - 1)] = timestamp;
+	flips_++;
+	if (countFlips(timestamp) >= MIN_FLIPS) {
+	  lastTimestampNanos_ = timestamp;
+	  oscillated = true;
+	}
+      }
+    }
+    if (count > 0) {
+      measure(timestamps[count - 1]);
+    }
+    if (oscillated && listener_ != null) {
+      listener_.onOscillation(this);
     }
   }
 
-  @Override
-    public void onSensorChanged(SensorEvent event) {
-
-    float value = event.values[axisOfInterest_];
-
-    if (Math.abs(value) > oscillationThreshold_ && (
-	  (value < 0.0f && lastOscillationDirection_ >= 0) ||
-	  (value > 0.0f && lastOscillationDirection_ <= 0))) {
-      lastTimestampMillis_ = (new Date()).getTime();
-      if (value > 0.0f) {
-	lastOscillationDirection_ = 1;
-      } else {
-	lastOscillationDirection_ = -1;
-      }
+  /** Get the last oscillation timestamp
+   *
+   * @return The timestamp of the sensor event of the last oscillation (in
+   *     SensorEvent.timestamp nanoseconds), or 0 if none have been detected.
+   */
+  long getLastOscillationTimestampNanos() {
+    return lastTimestampNanos_;
+  }
+
+  /** Get the timestamp of the newest sample
+   *
+   * @return The timestamp of the latest sensor event delivered (in
+   *     SensorEvent.timestamp nanoseconds), or 0 if none have been.
+   */
+  long getLatestTimestampNanos() {
+    if (samples_ == 0) {
+      return 0;
     }
+    return sampleTimes_[(int)(samples_ - 1) & (SAMPLE_RING - 1)];
   }
 
-  @Override
-    public void onAccuracyChanged(Sensor sensor, int accuary) {
-    /* ignored */
+  /** Get the shaking frequency.
+   *
+   * @return Full back-and-forth cycles per second over the last
+   *     WINDOW_NANOS, or 0 if there were fewer than MIN_FLIPS flips.
+   */
+  public float getFrequencyHz() {
+    return frequencyHz_;
   }
 
-  /** Get the last oscillation timestamp
+  /** Get the shaking energy.
    *
-   * @return The last oscillation timestamp (in milliseconds), or 0 if none have
-   *     been detected.
+   * @return Variance of the axis over the last WINDOW_NANOS, in (m/s^2)^2.
    */
-  long getLastOscillationTimestamp() {
-    return lastTimestampMillis_;
+  public float getEnergy() {
+    return energy_;
+  }
+
+  /** Counts the flips within WINDOW_NANOS before a time. */
+  private int countFlips(long nowNanos) {
+    int count = 0;
+    long limit = Math.min(flips_, FLIP_RING);
+    for (long i = flips_ - 1; count < limit; i--) {
+      if (nowNanos - flipTimes_[(int)i & (FLIP_RING - 1)] > WINDOW_NANOS) {
+	break;
+      }
+      count++;
+    }
+    return count;
+  }
+
+  /** Updates the frequency and energy for the window ending at a time. */
+  private void measure(long nowNanos) {
+    int flips = countFlips(nowNanos);
+    if (flips >= MIN_FLIPS) {
+      long first = flipTimes_[(int)(flips_ - flips) & (FLIP_RING - 1)];
+      long last = flipTimes_[(int)(flips_ - 1) & (FLIP_RING - 1)];
+      // Two flips per cycle.
+      frequencyHz_ = last > first ?
+	(flips - 1) * 0.5f * 1e9f / (last - first) : 0.0f;
+    } else {
+      frequencyHz_ = 0.0f;
+    }
+
+    int n = 0;
+    float sum = 0.0f;
+    float sumSquares = 0.0f;
+    long limit = Math.min(samples_, SAMPLE_RING);
+    for (long i = samples_ - 1; n < limit; i--) {
+      int slot = (int)i & (SAMPLE_RING - 1);
+      if (nowNanos - sampleTimes_[slot] > WINDOW_NANOS) {
+	break;
+      }
+      float value = sampleValues_[slot];
+      sum += value;
+      sumSquares += value * value;
+      n++;
+    }
+    if (n == 0) {
+      energy_ = 0.0f;
+    } else {
+      float mean = sum / n;
+      energy_ = Math.max(0.0f, sumSquares / n - mean * mean);
+    }
   }
-}
\ No newline at end of file
+}
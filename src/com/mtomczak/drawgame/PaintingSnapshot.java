@@ -0,0 +1,204 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Raw copy of the painting pixels in a memory-mapped file.
+ *
+ * The file holds a small header followed by the pixels exactly as the bitmap
+ * stores them, so restoring is a single copy out of the mapping. Saving only
+ * writes the rows of tiles that changed since the last save; the file's row
+ * count is padded to a whole number of tile rows so each band can be copied in
+ * one piece.
+ */
+public class PaintingSnapshot {
+  private static final String TAG = "PaintingSnapshot";
+
+  /** File header: "DGS" followed by the format version. */
+  private static final int MAGIC = 0x44475301;
+  /** Header fields: magic, width, height, selected crayon. */
+  private static final int HEADER_SIZE = 16;
+
+  private final File file_;
+  private MappedByteBuffer mapped_ = null;
+  private int width_ = 0;
+  private int height_ = 0;
+  private int selectedCrayon_ = 0;
+
+  /** Bitmap holding one row of tiles on its way to the file. */
+  private Bitmap band_ = null;
+  private Canvas bandCanvas_ = null;
+  private final Paint copyPaint_ = new Paint();
+
+  /** @brief Constructor.
+   *
+   * @param file Snapshot file. It is created on the first save if missing.
+   */
+  public PaintingSnapshot(File file) {
+    file_ = file;
+    copyPaint_.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+  }
+
+  /** @brief Copies the saved pixels into a bitmap.
+   *
+   * If the saved painting has a different size than the bitmap, it is drawn
+   * anchored at the top-left corner.
+   *
+   * @param bitmap Bitmap to restore into.
+   * @param canvas Canvas drawing into the bitmap.
+   * @return True if a snapshot was restored.
+   */
+  public boolean restore(Bitmap bitmap, Canvas canvas) {
+    if (!file_.exists() || !map(0, 0)) {
+      return false;
+    }
+    mapped_.position(HEADER_SIZE);
+    if (width_ == bitmap.getWidth() && height_ == bitmap.getHeight()) {
+      bitmap.copyPixelsFromBuffer(mapped_);
+    } else {
+      Bitmap saved = Bitmap.createBitmap(
+	width_, height_, Bitmap.Config.ARGB_8888);
+      saved.copyPixelsFromBuffer(mapped_);
+      canvas.drawBitmap(saved, 0, 0, copyPaint_);
+      saved.recycle();
+    }
+    return true;
+  }
+
+  /** Get the crayon that was selected when the snapshot was saved.
+   *
+   * @return Index of the crayon; only valid after a successful restore().
+   */
+  public int getSelectedCrayon() {
+    return selectedCrayon_;
+  }
+
+  /** @brief Writes the changed rows of tiles to the file, and syncs it.
+   *
+   * @param bitmap Painting bitmap.
+   * @param tiles Tiles of the bitmap that changed since the last save; marked
+   *     clean on success.
+   * @param selectedCrayon Index of the selected crayon.
+   * @return True if the snapshot was saved.
+   */
+  public boolean save(Bitmap bitmap, TileGrid tiles, int selectedCrayon) {
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    if (mapped_ == null || width != width_ || height != height_) {
+      // A new file layout; every band has to be written.
+      if (!map(width, height)) {
+	return false;
+      }
+      tiles.markAll();
+    }
+    if (band_ == null || band_.getWidth() != width) {
+      if (band_ != null) {
+	band_.recycle();
+      }
+      band_ = Bitmap.createBitmap(
+	width, TileGrid.TILE_SIZE, Bitmap.Config.ARGB_8888);
+      bandCanvas_ = new Canvas(band_);
+    }
+
+    int rowBytes = width * 4;
+    for (int row = 0; row < tiles.getRows(); row++) {
+      if (!tiles.isRowDirty(row)) {
+	continue;
+      }
+      int top = row * TileGrid.TILE_SIZE;
+      bandCanvas_.drawBitmap(bitmap, 0, -top, copyPaint_);
+      mapped_.position(HEADER_SIZE + top * rowBytes);
+      band_.copyPixelsToBuffer(mapped_);
+    }
+    selectedCrayon_ = selectedCrayon;
+    mapped_.putInt(12, selectedCrayon);
+    mapped_.force();
+    tiles.clear();
+    return true;
+  }
+
+  /** @brief Maps the snapshot file.
+   *
+   * @param width Width of the painting to save, or 0 to map the existing
+   *     file as it is.
+   * @param height Height of the painting to save, or 0 for the existing
+   *     file.
+   * @return True if the file is mapped and has a valid header.
+   */
+  private boolean map(int width, int height) {
+    mapped_ = null;
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file_, "rw");
+      if (width == 0) {
+	if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC) {
+	  return false;
+	}
+	width = raf.readInt();
+	height = raf.readInt();
+	selectedCrayon_ = raf.readInt();
+	if (width <= 0 || height <= 0 || raf.length() < fileSize(width, height)) {
+	  return false;
+	}
+      }
+      long size = fileSize(width, height);
+      raf.setLength(size);
+      mapped_ = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      mapped_.putInt(0, MAGIC);
+      mapped_.putInt(4, width);
+      mapped_.putInt(8, height);
+      mapped_.putInt(12, selectedCrayon_);
+      width_ = width;
+      height_ = height;
+      return true;
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to map snapshot", e);
+      mapped_ = null;
+      return false;
+    } finally {
+      if (raf != null) {
+	try {
+	  // The mapping stays valid after the file is closed.
+	  raf.close();
+	} catch (IOException e) {
+	  // ignored
+	}
+      }
+    }
+  }
+
+  /** @brief Size of the file for a painting, with the rows padded to whole
+   * bands.
+   */
+  private static long fileSize(int width, int height) {
+    int bands = (height + TileGrid.TILE_SIZE - 1) / TileGrid.TILE_SIZE;
+    return HEADER_SIZE + (long)bands * TileGrid.TILE_SIZE * width * 4;
+  }
+}
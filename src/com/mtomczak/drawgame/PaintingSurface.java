@@ -0,0 +1,111 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+/**
+ * Owns the bitmap the child paints into, and keeps the painting across size
+ * changes.
+ *
+ * The surface has a logical size (the size of the view) and a backing bitmap
+ * that is at least that big. Resizing to the same or a smaller size keeps the
+ * backing bitmap, so nothing is allocated and nothing is lost; the content
+ * stays anchored at the top-left corner, and whatever falls outside the
+ * logical size comes back if the surface grows again.
+ *
+ * The backing bitmap is square, as wide as the larger side, so rotating the
+ * device only swaps the logical width and height and never reallocates.
+ * This costs the memory of the extra square area up front. Only growing past
+ * the square (when the view itself gets bigger) allocates; the old bitmap is
+ * alive until it is copied over, and released right away after.
+ */
+public class PaintingSurface {
+  private Bitmap bitmap_ = null;
+  private Canvas canvas_ = null;
+  private int width_ = 0;
+  private int height_ = 0;
+
+  /** @brief Sets the logical size of the surface.
+   *
+   * Sizes that are not positive (as seen in early measure passes) are
+   * ignored.
+   *
+   * @param width New width, in pixels.
+   * @param height New height, in pixels.
+   * @return True if the backing bitmap (and canvas) changed.
+   */
+  public boolean resize(int width, int height) {
+    if (width <= 0 || height <= 0) {
+      return false;
+    }
+    width_ = width;
+    height_ = height;
+    if (bitmap_ != null &&
+	width <= bitmap_.getWidth() && height <= bitmap_.getHeight()) {
+      return false;
+    }
+
+    Bitmap old = bitmap_;
+    int side = Math.max(width, height);
+    if (old != null) {
+      side = Math.max(side, old.getWidth());
+    }
+    bitmap_ = Bitmap.createBitmap(side, side, Bitmap.Config.ARGB_8888);
+    if (old != null) {
+      canvas_.setBitmap(bitmap_);
+      canvas_.drawBitmap(old, 0, 0, null);
+      old.recycle();
+    } else {
+      canvas_ = new Canvas(bitmap_);
+    }
+    return true;
+  }
+
+  /** Get the backing bitmap. It may be larger than the logical size.
+   *
+   * @return The backing bitmap, or null before the first resize.
+   */
+  public Bitmap getBitmap() {
+    return bitmap_;
+  }
+
+  /** Get a canvas drawing into the backing bitmap.
+   *
+   * @return The canvas, or null before the first resize.
+   */
+  public Canvas getCanvas() {
+    return canvas_;
+  }
+
+  /** Get the logical width.
+   *
+   * @return The width, in pixels.
+   */
+  public int getWidth() {
+    return width_;
+  }
+
+  /** Get the logical height.
+   *
+   * @return The height, in pixels.
+   */
+  public int getHeight() {
+    return height_;
+  }
+}
@@ -51,6 +51,16 @@ public class RandomSound implements MediaPlayer.OnCompletionListener {
     playing_ = false;
   }
 
+  /** @brief Sets the volume of every sound in the pool.
+   *
+   * @param volume From 0 (silent) to 1 (full volume).
+   */
+  public void setVolume(float volume) {
+    for (int i = 0; i < sounds_.length; i++) {
+      sounds_[i].setVolume(volume, volume);
+    }
+  }
+
   @Override
     public void onCompletion(MediaPlayer mp) {
     if (playing_) {
@@ -0,0 +1,80 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.os.Process;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread that rasterizes queued touch samples off the UI thread.
+ *
+ * The thread sleeps until samples arrive, then hands everything queued so far
+ * to the renderer in one go, so a burst of samples is drawn together.
+ */
+public class RenderThread extends Thread {
+  /**
+   * Draws the queued samples.
+   */
+  public interface Renderer {
+    /**
+     * Called on the render thread whenever samples are queued.
+     * @param queue Queue to drain.
+     */
+    void render(TouchEventQueue queue);
+  }
+
+  private final TouchEventQueue queue_;
+  private final Renderer renderer_;
+  private volatile boolean quitting_ = false;
+
+  /** @brief Constructor.
+   *
+   * @param queue Queue the UI thread fills.
+   * @param renderer Draws the queued samples.
+   */
+  public RenderThread(TouchEventQueue queue, Renderer renderer) {
+    super("RenderThread");
+    queue_ = queue;
+    renderer_ = renderer;
+  }
+
+  @Override
+    public void run() {
+    Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+    while (!quitting_) {
+      queue_.await();
+      renderer_.render(queue_);
+    }
+    // Draw whatever was queued before quit().
+    renderer_.render(queue_);
+  }
+
+  /** @brief Draws what is left in the queue, then stops the thread and waits
+   * for it to finish.
+   */
+  public void quit() {
+    quitting_ = true;
+    // Unparking the thread itself also covers it being about to park.
+    LockSupport.unpark(this);
+    try {
+      join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
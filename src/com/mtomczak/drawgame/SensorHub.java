@@ -0,0 +1,319 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+
+/**
+ * Registers with SensorManager once per physical sensor and fans the events
+ * out to every detector interested in that sensor.
+ *
+ * Detectors add themselves with addListener(); the hub only talks to
+ * SensorManager in onResume(), onPause(), setRate() and
+ * setBatchingEnabled(). It also counts the events it receives, to measure
+ * what the sensors cost.
+ *
+ * Events reach the detectors as batches in flat arrays. Without hardware
+ * batching each batch is the one event just received. With batching enabled
+ * (API 19 and sensors with a FIFO), a sensor may hold events back for up to
+ * its report latency and deliver them as a burst; the hub collects the burst
+ * and hands it over in one pass once the burst is done.
+ */
+public class SensorHub implements SensorEventListener {
+  /**
+   * Receives the events of a sensor.
+   */
+  public interface Listener {
+    /**
+     * Called with a batch of events, oldest first.
+     * @param sensor Sensor the events come from.
+     * @param count Number of events.
+     * @param timestamps SensorEvent.timestamp of each event, in nanoseconds.
+     * @param values First VALUES_PER_EVENT entries of SensorEvent.values for
+     *     each event. Only valid during the call.
+     */
+    void onSensorBatch(Sensor sensor, int count, long timestamps[],
+		       float values[]);
+  }
+
+  /** Rate that keeps a sensor unregistered. */
+  public static final int RATE_OFF = -1;
+  /** Values kept per event. */
+  public static final int VALUES_PER_EVENT = 3;
+
+  /** A sensor, the detectors that listen to it, and its pending events. */
+  private static class Entry implements Runnable {
+    final Sensor sensor_;
+    Listener listeners_[] = new Listener[2];
+    int count_ = 0;
+    int rate_ = SensorManager.SENSOR_DELAY_NORMAL;
+    int maxLatencyMicros_ = 0;
+    /** True if the sensor is registered with a report latency. */
+    boolean batched_ = false;
+
+    long timestamps_[] = new long[1];
+    float values_[] = new float[VALUES_PER_EVENT];
+    int events_ = 0;
+    /** True while a dispatch of the pending events is posted. */
+    boolean posted_ = false;
+
+    Entry(Sensor sensor) {
+      sensor_ = sensor;
+    }
+
+    void add(SensorEvent event) {
+      if (events_ == timestamps_.length) {
+	long timestamps[] = new long[events_ * 2];
+	System.arraycopy(timestamps_, 0, timestamps, 0, events_);
+	timestamps_ = timestamps;
+	float values[] = new float[events_ * 2 * VALUES_PER_EVENT];
+	System.arraycopy(values_, 0, values, 0, events_ * VALUES_PER_EVENT);
+	values_ = values;
+      }
+      int length = Math.min(event.values.length, VALUES_PER_EVENT);
+      int base = events_ * VALUES_PER_EVENT;
+      for (int i = 0; i < length; i++) {
+	values_[base + i] = event.values[i];
+      }
+      timestamps_[events_] = event.timestamp;
+      events_++;
+    }
+
+    /** Hands the pending events to the listeners. */
+    @Override
+      public void run() {
+      posted_ = false;
+      if (events_ == 0) {
+	return;
+      }
+      for (int i = 0; i < count_; i++) {
+	listeners_[i].onSensorBatch(sensor_, events_, timestamps_, values_);
+      }
+      events_ = 0;
+    }
+  }
+
+  private final SensorManager sensorManager_;
+  private final Handler handler_ = new Handler();
+  private Entry entries_[] = new Entry[0];
+  private boolean resumed_ = false;
+  private boolean batching_ = false;
+  private long eventCount_ = 0;
+
+  /** @brief Constructor.
+   *
+   * Must be called on the thread sensor events are delivered on (the UI
+   * thread).
+   *
+   * @param manager Sensor manager that controls the sensors.
+   */
+  public SensorHub(SensorManager manager) {
+    sensorManager_ = manager;
+  }
+
+  /** @brief Gets the default sensor of a type.
+   *
+   * @param type One of the Sensor.TYPE_ constants.
+   * @return The sensor, or null if the device has none.
+   */
+  public Sensor getSensor(int type) {
+    return sensorManager_.getDefaultSensor(type);
+  }
+
+  /** @brief Adds a detector for a sensor.
+   *
+   * @param sensor Sensor to listen to, as returned by getSensor(); null is
+   *     ignored.
+   * @param listener Receives the events of the sensor.
+   */
+  public void addListener(Sensor sensor, Listener listener) {
+    if (sensor == null) {
+      return;
+    }
+    Entry entry = findEntry(sensor);
+    if (entry == null) {
+      Entry entries[] = new Entry[entries_.length + 1];
+      System.arraycopy(entries_, 0, entries, 0, entries_.length);
+      entry = new Entry(sensor);
+      entries[entries_.length] = entry;
+      entries_ = entries;
+      if (resumed_) {
+	register(entry);
+      }
+    }
+    if (entry.count_ == entry.listeners_.length) {
+      Listener listeners[] = new Listener[entry.count_ * 2];
+      System.arraycopy(entry.listeners_, 0, listeners, 0, entry.count_);
+      entry.listeners_ = listeners;
+    }
+    entry.listeners_[entry.count_++] = listener;
+  }
+
+  /** @brief Turns hardware batching on or off for every sensor.
+   *
+   * Batching only happens on API 19 and later, for sensors with a FIFO and a
+   * report latency set through setRate(); other sensors keep delivering
+   * events one at a time.
+   *
+   * @param enabled True to let sensors batch events.
+   */
+  public void setBatchingEnabled(boolean enabled) {
+    if (enabled == batching_) {
+      return;
+    }
+    batching_ = enabled;
+    if (resumed_) {
+      for (int i = 0; i < entries_.length; i++) {
+	reregister(entries_[i]);
+      }
+    }
+  }
+
+  /** @brief Sets the rate a sensor is registered at.
+   *
+   * @param sensor Sensor passed to addListener(); others are ignored.
+   * @param rate One of the SensorManager.SENSOR_DELAY_ constants, a delay in
+   *     microseconds, or RATE_OFF to stop the sensor.
+   * @param maxLatencyMicros Longest the sensor may hold events back while
+   *     batching is enabled, in microseconds; 0 for no batching.
+   */
+  public void setRate(Sensor sensor, int rate, int maxLatencyMicros) {
+    Entry entry = findEntry(sensor);
+    if (entry == null ||
+	(entry.rate_ == rate && entry.maxLatencyMicros_ == maxLatencyMicros)) {
+      return;
+    }
+    entry.rate_ = rate;
+    entry.maxLatencyMicros_ = maxLatencyMicros;
+    if (resumed_) {
+      reregister(entry);
+    }
+  }
+
+  /** Get the number of events received.
+   *
+   * @return Events from all sensors since construction.
+   */
+  public long getEventCount() {
+    return eventCount_;
+  }
+
+  public void onPause() {
+    if (resumed_) {
+      sensorManager_.unregisterListener(this);
+      resumed_ = false;
+      for (int i = 0; i < entries_.length; i++) {
+	dispatch(entries_[i]);
+      }
+    }
+  }
+
+  public void onResume() {
+    if (!resumed_) {
+      resumed_ = true;
+      for (int i = 0; i < entries_.length; i++) {
+	register(entries_[i]);
+      }
+    }
+  }
+
+  @Override
+    public void onSensorChanged(SensorEvent event) {
+    eventCount_++;
+    Entry entry = findEntry(event.sensor);
+    if (entry == null) {
+      return;
+    }
+    entry.add(event);
+    if (!entry.batched_) {
+      entry.run();
+    } else if (!entry.posted_) {
+      // A burst arrives as a run of calls within one message; hand it over
+      // once they are done.
+      entry.posted_ = true;
+      handler_.post(entry);
+    }
+  }
+
+  @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    /* ignored */
+  }
+
+  private void register(Entry entry) {
+    entry.batched_ = false;
+    if (entry.rate_ == RATE_OFF) {
+      return;
+    }
+    if (batching_ && entry.maxLatencyMicros_ > 0 &&
+	Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT &&
+	Batching.register(sensorManager_, this, entry.sensor_, entry.rate_,
+			  entry.maxLatencyMicros_)) {
+      entry.batched_ = true;
+      return;
+    }
+    sensorManager_.registerListener(this, entry.sensor_, entry.rate_);
+  }
+
+  private void reregister(Entry entry) {
+    sensorManager_.unregisterListener(this, entry.sensor_);
+    dispatch(entry);
+    register(entry);
+  }
+
+  /** Hands over a pending burst now rather than in its posted message. */
+  private void dispatch(Entry entry) {
+    if (entry.posted_) {
+      handler_.removeCallbacks(entry);
+      entry.run();
+    }
+  }
+
+  private Entry findEntry(Sensor sensor) {
+    for (int i = 0; i < entries_.length; i++) {
+      if (entries_[i].sensor_ == sensor) {
+	return entries_[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * API 19 batching calls, in their own class so older platforms never load
+   * them.
+   */
+  private static class Batching {
+    /** @brief Registers a sensor with a report latency, if it has a FIFO.
+     *
+     * @return True if the sensor was registered.
+     */
+    static boolean register(SensorManager manager,
+			    SensorEventListener listener,
+			    Sensor sensor, int rate, int maxLatencyMicros) {
+      if (sensor.getFifoMaxEventCount() == 0) {
+	return false;
+      }
+      return manager.registerListener(listener, sensor, rate,
+				      maxLatencyMicros);
+    }
+  }
+}
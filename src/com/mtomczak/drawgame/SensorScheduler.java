@@ -0,0 +1,166 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Picks sensor rates from the face-down state.
+ *
+ * Shaking only erases while the device is face-down, so face-up the scheduler
+ * keeps just a slow watch on the face-down sensor and turns the accelerometer
+ * off. Once the device turns face-down, the accelerometer runs at a rate fast
+ * enough to catch shakes, until the device is turned back up.
+ *
+ * When the hub batches events, the face-down watch may hold its events back
+ * for a second, while shakes are reported within SHAKE_LATENCY_MICROS so the
+ * erasing still feels immediate.
+ *
+ * The scheduler also counts the events delivered in each state, so the saving
+ * can be measured.
+ */
+public class SensorScheduler
+  implements FaceDownSensor.OnFaceDownChangedListener {
+  /** Delay between face-down checks, in microseconds. */
+  public static final int WATCH_DELAY_MICROS = 500000;
+  /** Accelerometer rate while face-down. */
+  public static final int SHAKE_RATE = SensorManager.SENSOR_DELAY_GAME;
+  /** Longest the face-down watch may batch events, in microseconds. */
+  public static final int WATCH_LATENCY_MICROS = 1000000;
+  /** Longest the accelerometer may batch events while face-down, in
+   * microseconds; well below ShakeMonitor.SHAKE_TIMEOUT_MILLIS. */
+  public static final int SHAKE_LATENCY_MICROS = 100000;
+
+  private final SensorHub hub_;
+  private final Sensor watch_;
+  private final Sensor accelerometer_;
+  private boolean facedown_ = false;
+  private boolean resumed_ = false;
+
+  /** Events and resumed time per state, indexed by STATE_ constants. */
+  private static final int STATE_FACE_UP = 0;
+  private static final int STATE_FACE_DOWN = 1;
+  private final long events_[] = new long[2];
+  private final long millis_[] = new long[2];
+  /** Event count and time when the current state was entered. */
+  private long stateStartEvents_ = 0;
+  private long stateStartMillis_ = 0;
+
+  /** @brief Constructor.
+   *
+   * Registers the scheduler as a listener of the face-down sensor.
+   *
+   * @param hub Hub owning the sensor registrations.
+   * @param facedown Face-down sensor registered with the hub.
+   */
+  public SensorScheduler(SensorHub hub, FaceDownSensor facedown) {
+    hub_ = hub;
+    watch_ = facedown.getSensor();
+    accelerometer_ = hub.getSensor(Sensor.TYPE_ACCELEROMETER);
+    facedown.addOnFaceDownChangedListener(this);
+    applyRates();
+  }
+
+  public void onPause() {
+    if (resumed_) {
+      endState();
+      resumed_ = false;
+      hub_.onPause();
+    }
+  }
+
+  public void onResume() {
+    if (!resumed_) {
+      resumed_ = true;
+      hub_.onResume();
+      beginState();
+    }
+  }
+
+  @Override
+    public void onFaceDownChanged(boolean facedown) {
+    if (facedown == facedown_) {
+      return;
+    }
+    if (resumed_) {
+      endState();
+    }
+    facedown_ = facedown;
+    applyRates();
+    if (resumed_) {
+      beginState();
+    }
+  }
+
+  /** Get the rate of sensor events while in a state.
+   *
+   * @param facedown True for the face-down state, false for face-up.
+   * @return Events delivered per minute while resumed in that state, or 0
+   *     if no time was spent in it.
+   */
+  public long getEventsPerMinute(boolean facedown) {
+    int state = facedown ? STATE_FACE_DOWN : STATE_FACE_UP;
+    long events = events_[state];
+    long millis = millis_[state];
+    if (resumed_ && facedown == facedown_) {
+      events += hub_.getEventCount() - stateStartEvents_;
+      millis += SystemClock.uptimeMillis() - stateStartMillis_;
+    }
+    return millis == 0 ? 0 : events * 60000 / millis;
+  }
+
+  /** @brief Writes the event rate of each state.
+   *
+   * @param out Where to write; the caller checks it for errors.
+   */
+  public void dump(PrintWriter out) {
+    out.println("sensor_events_per_min face_up " + getEventsPerMinute(false) +
+		" face_down " + getEventsPerMinute(true));
+  }
+
+  private void applyRates() {
+    // Rates in microseconds need API 9; older platforms get the slowest
+    // named rate.
+    int watchRate =
+      Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD ?
+      WATCH_DELAY_MICROS : SensorManager.SENSOR_DELAY_NORMAL;
+    // The watch may be the accelerometer itself; the sensor set last wins.
+    if (facedown_) {
+      hub_.setRate(watch_, watchRate, WATCH_LATENCY_MICROS);
+      hub_.setRate(accelerometer_, SHAKE_RATE, SHAKE_LATENCY_MICROS);
+    } else {
+      hub_.setRate(accelerometer_, SensorHub.RATE_OFF, 0);
+      hub_.setRate(watch_, watchRate, WATCH_LATENCY_MICROS);
+    }
+  }
+
+  private void beginState() {
+    stateStartEvents_ = hub_.getEventCount();
+    stateStartMillis_ = SystemClock.uptimeMillis();
+  }
+
+  private void endState() {
+    int state = facedown_ ? STATE_FACE_DOWN : STATE_FACE_UP;
+    events_[state] += hub_.getEventCount() - stateStartEvents_;
+    millis_[state] += SystemClock.uptimeMillis() - stateStartMillis_;
+  }
+}
@@ -0,0 +1,120 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import java.util.Random;
+
+/**
+ * Plans the blots erased while shaking.
+ *
+ * The number of blots due grows with the time since the last batch and with
+ * the shake pace, so erasing runs at the same speed whatever the frame rate;
+ * the fraction of a blot left over carries into the next batch. The blot size
+ * grows with the shake intensity. All blots of a batch share one width, so
+ * they can be drawn with a single drawPoints call from the preallocated point
+ * array.
+ *
+ * Positions and widths come from the given Random, so a seeded Random gives
+ * the same blots for the same timing.
+ */
+public class ShakeEraser {
+  /** Blots per second at full pace. */
+  public static final float MAX_BLOTS_PER_SECOND = 20.0f;
+  /** Blot rate at the slowest shake, and size at the gentlest, relative to
+   * the fastest and hardest. */
+  public static final float MIN_STRENGTH = 0.4f;
+  /** Most blots drawn in one batch. */
+  public static final int MAX_BATCH = 16;
+  /** Longest gap between batches that still counts, in milliseconds; a
+   * stalled frame does not erase the whole painting at once. */
+  private static final long MAX_ELAPSED_MILLIS = 250;
+
+  private final Random random_;
+  private final float points_[] = new float[MAX_BATCH * 2];
+  private float blotWidth_ = 0.0f;
+  private float carry_ = 0.0f;
+  private long lastMillis_ = 0;
+
+  /** @brief Constructor.
+   *
+   * @param random Source of blot positions and widths.
+   */
+  public ShakeEraser(Random random) {
+    random_ = random;
+  }
+
+  /** @brief Starts a shake; blots are due from this time on.
+   *
+   * @param nowMillis Current time, in SystemClock.uptimeMillis() milliseconds.
+   */
+  public void start(long nowMillis) {
+    lastMillis_ = nowMillis;
+    carry_ = 0.0f;
+  }
+
+  /** @brief Plans the blots due since the last batch.
+   *
+   * Fills getPoints() and getBlotWidth().
+   *
+   * @param nowMillis Current time, in SystemClock.uptimeMillis() milliseconds.
+   * @param intensity Shake intensity, from 0 to 1; sets the blot size.
+   * @param pace Shake pace, from 0 to 1; sets the blot rate.
+   * @param width Width of the painting.
+   * @param height Height of the painting.
+   * @return Number of blots due; their centers are the first 2 * count
+   *     entries of getPoints().
+   */
+  public int plan(long nowMillis, float intensity, float pace,
+		  int width, int height) {
+    long elapsed = Math.min(nowMillis - lastMillis_, MAX_ELAPSED_MILLIS);
+    lastMillis_ = nowMillis;
+    if (elapsed <= 0 || width <= 0 || height <= 0) {
+      return 0;
+    }
+    float rate = MIN_STRENGTH + (1.0f - MIN_STRENGTH) * pace;
+    float due = MAX_BLOTS_PER_SECOND * rate * elapsed / 1000.0f + carry_;
+    int count = Math.min((int)due, MAX_BATCH);
+    carry_ = count == MAX_BATCH ? 0.0f : due - count;
+    if (count == 0) {
+      return 0;
+    }
+
+    float strength = MIN_STRENGTH + (1.0f - MIN_STRENGTH) * intensity;
+    blotWidth_ = strength * (random_.nextInt(width / 2 + 1) + width / 4);
+    for (int i = 0; i < count; i++) {
+      points_[i * 2] = random_.nextInt(width);
+      points_[i * 2 + 1] = random_.nextInt(height);
+    }
+    return count;
+  }
+
+  /** Get the blot centers of the last batch.
+   *
+   * @return x and y of each blot, interleaved. Overwritten by plan().
+   */
+  public float[] getPoints() {
+    return points_;
+  }
+
+  /** Get the blot width of the last batch.
+   *
+   * @return Width shared by every blot of the batch.
+   */
+  public float getBlotWidth() {
+    return blotWidth_;
+  }
+}
@@ -0,0 +1,152 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.os.SystemClock;
+
+/**
+ * Combines the oscillation and face-down sensors into a single "shake-erasing"
+ * state.
+ *
+ * Shake-erasing is active while the device is face-down and has oscillated
+ * within the last SHAKE_TIMEOUT_MILLIS. The sensors push changes into the
+ * monitor, which notifies its listener when erasing starts. Since nothing
+ * signals the timeout expiring, whoever is erasing polls isErasing() while
+ * active; the listener is notified of the stop at that point.
+ *
+ * While erasing, getIntensity() tells how hard the device is being shaken,
+ * and getPace() how fast.
+ */
+public class ShakeMonitor
+  implements OscillationSensor.OnOscillationListener,
+	     FaceDownSensor.OnFaceDownChangedListener {
+  /**
+   * Receives a callback when shake-erasing starts or stops.
+   */
+  public interface Listener {
+    /**
+     * Called when the shake-erasing state changes.
+     * @param erasing True if shake-erasing is now active.
+     */
+    void onShakeErasingChanged(boolean erasing);
+  }
+
+  /** How long after the last oscillation the device counts as shaking. */
+  public static final long SHAKE_TIMEOUT_MILLIS = 500;
+  /** RMS acceleration, in m/s^2, at which shaking is at full intensity. */
+  public static final float FULL_INTENSITY_RMS = 12.0f;
+  /** Shaking frequency, in cycles per second, at which the pace is full. */
+  public static final float FULL_PACE_HZ = 4.0f;
+
+  private final FaceDownSensor facedown_;
+  private final OscillationSensor oscillatorX_;
+  private final OscillationSensor oscillatorY_;
+  private Listener listener_ = null;
+  private boolean erasing_ = false;
+
+  /** Last oscillation seen from any of the sensors, in
+   * SystemClock.uptimeMillis() milliseconds. */
+  private long lastOscillationMillis_ = 0;
+
+  /** @brief Constructor.
+   *
+   * Registers the monitor as the listener of the given sensors.
+   *
+   * @param facedown Sensor reporting whether the device is face-down.
+   * @param oscillatorX Oscillation sensor for the x-axis.
+   * @param oscillatorY Oscillation sensor for the y-axis.
+   */
+  public ShakeMonitor(
+    FaceDownSensor facedown,
+    OscillationSensor oscillatorX,
+    OscillationSensor oscillatorY) {
+    facedown_ = facedown;
+    facedown_.addOnFaceDownChangedListener(this);
+    oscillatorX_ = oscillatorX;
+    oscillatorY_ = oscillatorY;
+    oscillatorX.setOnOscillationListener(this);
+    oscillatorY.setOnOscillationListener(this);
+  }
+
+  public void setListener(Listener listener) {
+    listener_ = listener;
+  }
+
+  @Override
+    public void onOscillation(OscillationSensor sensor) {
+    // Batched events arrive late, so the oscillation can be older than its
+    // delivery. Sensor timestamps use their own time base, but the newest
+    // event of a batch arrives right as it is delivered; the oscillation's
+    // age relative to that event moves it onto the monitor's clock.
+    long now = SystemClock.uptimeMillis();
+    long ageNanos = sensor.getLatestTimestampNanos() -
+      sensor.getLastOscillationTimestampNanos();
+    long oscillationMillis = now - Math.max(ageNanos, 0) / 1000000;
+    if (oscillationMillis > lastOscillationMillis_) {
+      lastOscillationMillis_ = oscillationMillis;
+    }
+    update(now);
+  }
+
+  @Override
+    public void onFaceDownChanged(boolean facedown) {
+    update(SystemClock.uptimeMillis());
+  }
+
+  /** Check (and update) the shake-erasing state.
+   *
+   * @param nowMillis Current time, in SystemClock.uptimeMillis() milliseconds.
+   * @return True if shake-erasing is active.
+   */
+  public boolean isErasing(long nowMillis) {
+    update(nowMillis);
+    return erasing_;
+  }
+
+  /** Get how hard the device is being shaken.
+   *
+   * @return From 0 for barely shaking to 1 for shaking at
+   *     FULL_INTENSITY_RMS or harder, measured on the more active axis.
+   */
+  public float getIntensity() {
+    float energy = Math.max(oscillatorX_.getEnergy(), oscillatorY_.getEnergy());
+    return Math.min(1.0f, (float)Math.sqrt(energy) / FULL_INTENSITY_RMS);
+  }
+
+  /** Get how fast the device is being shaken.
+   *
+   * @return From 0 for not oscillating to 1 for FULL_PACE_HZ or faster,
+   *     measured on the more active axis.
+   */
+  public float getPace() {
+    OscillationSensor axis =
+      oscillatorX_.getEnergy() >= oscillatorY_.getEnergy() ?
+      oscillatorX_ : oscillatorY_;
+    return Math.min(1.0f, axis.getFrequencyHz() / FULL_PACE_HZ);
+  }
+
+  private void update(long nowMillis) {
+    boolean erasing = facedown_.isFacedown() &&
+      nowMillis - lastOscillationMillis_ <= SHAKE_TIMEOUT_MILLIS;
+    if (erasing != erasing_) {
+      erasing_ = erasing;
+      if (listener_ != null) {
+	listener_.onShakeErasingChanged(erasing);
+      }
+    }
+  }
+}
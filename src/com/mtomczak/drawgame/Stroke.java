@@ -0,0 +1,169 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Incrementally rasterizes the stroke of a single pointer.
+ *
+ * Instead of accumulating the whole stroke in one Path and re-drawing it on
+ * every drag, the stroke only keeps a short tail: the last segment that was
+ * already drawn, followed by the points added since. Re-drawing that one
+ * segment along with the new ones lets the canvas render the join between
+ * them exactly as it would for the full path, so the output matches while the
+ * cost of each flush stays independent of the stroke length.
+ *
+ * Stroke objects are meant to be reused: start() begins a new stroke and
+ * stop() ends it, neither allocates.
+ */
+public class Stroke {
+  private final Path tail_ = new Path();
+  /** Bounds of the points in tail_. */
+  private final RectF tailBounds_ = new RectF();
+
+  /** Last point added to the stroke. */
+  private float lastX_ = 0.0f;
+  private float lastY_ = 0.0f;
+
+  /** Point before the last point (only valid if hasPrev_ is set). */
+  private float prevX_ = 0.0f;
+  private float prevY_ = 0.0f;
+  private boolean hasPrev_ = false;
+
+  /** Number of points added since the last flush. */
+  private int pendingPoints_ = 0;
+
+  private boolean active_ = false;
+
+  /** @brief Starts a new stroke.
+   *
+   * @param x x-coordinate of the first point.
+   * @param y y-coordinate of the first point.
+   */
+  public void start(float x, float y) {
+    tail_.rewind();
+    tail_.moveTo(x, y);
+    tailBounds_.set(x, y, x, y);
+    lastX_ = x;
+    lastY_ = y;
+    hasPrev_ = false;
+    pendingPoints_ = 0;
+    active_ = true;
+  }
+
+  /** @brief Ends the stroke, dropping any points that were not flushed.
+   */
+  public void stop() {
+    tail_.rewind();
+    pendingPoints_ = 0;
+    active_ = false;
+  }
+
+  /** Check whether the stroke is in progress.
+   *
+   * @return True between start() and stop().
+   */
+  public boolean isActive() {
+    return active_;
+  }
+
+  /** Get the last point added to the stroke.
+   *
+   * @return x-coordinate of the last point.
+   */
+  public float getLastX() {
+    return lastX_;
+  }
+
+  /** Get the last point added to the stroke.
+   *
+   * @return y-coordinate of the last point.
+   */
+  public float getLastY() {
+    return lastY_;
+  }
+
+  /** @brief Adds a point to the stroke without drawing it.
+   *
+   * @param x x-coordinate of the new point.
+   * @param y y-coordinate of the new point.
+   */
+  public void lineTo(float x, float y) {
+    tail_.lineTo(x, y);
+    tailBounds_.union(x, y);
+    prevX_ = lastX_;
+    prevY_ = lastY_;
+    hasPrev_ = true;
+    lastX_ = x;
+    lastY_ = y;
+    pendingPoints_++;
+  }
+
+  /** @brief Gets the bounds of the pixels the next flush will touch.
+   *
+   * @param paint Paint the stroke will be drawn with.
+   * @param bounds Set to the bounds, if anything is pending.
+   * @return True if there is anything to draw.
+   */
+  public boolean getPendingBounds(Paint paint, Rect bounds) {
+    if (pendingPoints_ == 0) {
+      return false;
+    }
+    // Miter joins can reach past half the stroke width, up to the miter
+    // limit; the extra pixel covers rounding.
+    float outset = paint.getStrokeWidth() * 0.5f *
+      Math.max(1.0f, paint.getStrokeMiter()) + 1.0f;
+    tailBounds_.inset(-outset, -outset);
+    tailBounds_.roundOut(bounds);
+    tailBounds_.inset(outset, outset);
+    return true;
+  }
+
+  /** @brief Draws the points added since the last flush.
+   *
+   * @param canvas Canvas to draw into.
+   * @param paint Paint to draw the stroke with.
+   * @param dirty Set to the bounds of the pixels touched, if anything was
+   *     drawn.
+   * @return True if anything was drawn.
+   */
+  public boolean flush(Canvas canvas, Paint paint, Rect dirty) {
+    if (!getPendingBounds(paint, dirty)) {
+      return false;
+    }
+    canvas.drawPath(tail_, paint);
+
+    // Keep the last segment, so the next flush draws its join.
+    tail_.rewind();
+    if (hasPrev_) {
+      tail_.moveTo(prevX_, prevY_);
+      tail_.lineTo(lastX_, lastY_);
+      tailBounds_.set(prevX_, prevY_, prevX_, prevY_);
+      tailBounds_.union(lastX_, lastY_);
+    } else {
+      tail_.moveTo(lastX_, lastY_);
+      tailBounds_.set(lastX_, lastY_, lastX_, lastY_);
+    }
+    pendingPoints_ = 0;
+    return true;
+  }
+}
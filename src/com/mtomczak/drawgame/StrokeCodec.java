@@ -0,0 +1,355 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+/**
+ * Compact binary encoding of stroke and erase events.
+ *
+ * Coordinates are quantized to 1 / QUANTA_PER_PIXEL of a pixel. A stroke
+ * starts with a header holding the crayon index and width and the absolute
+ * first point; each following drag sample only stores its offset from the
+ * previous sample of the same pointer. Numbers are written as zigzag
+ * varints, so the small offsets between neighbouring samples take one or two
+ * bytes per axis.
+ *
+ * Tiles written by undo and redo are stored as opaque compressed pixels.
+ *
+ * Every record starts with a tag byte: the record type in the top three bits
+ * and the pointer id in the bottom five.
+ *
+ * The codec keeps the last point of each pointer, so one instance must see
+ * every record of a stream in order. It has no Android dependencies.
+ */
+public class StrokeCodec {
+  /**
+   * Receives decoded events.
+   */
+  public interface Listener {
+    /**
+     * Called for a stroke header.
+     * @param id Pointer id.
+     * @param x x-coordinate of the first point.
+     * @param y y-coordinate of the first point.
+     * @param crayon Index of the crayon the stroke started with.
+     * @param width Width of that crayon.
+     */
+    void onTouchStart(int id, float x, float y, int crayon, float width);
+
+    /**
+     * Called for a drag sample.
+     * @param id Pointer id.
+     * @param x x-coordinate of the sample.
+     * @param y y-coordinate of the sample.
+     */
+    void onDrag(int id, float x, float y);
+
+    /**
+     * Called for the end of a stroke.
+     * @param id Pointer id.
+     */
+    void onTouchStop(int id);
+
+    /**
+     * Called for an erase blot.
+     * @param x x-coordinate of the blot center.
+     * @param y y-coordinate of the blot center.
+     * @param width Width of the blot.
+     */
+    void onEraseBlot(float x, float y, float width);
+
+    /**
+     * Called for a tile of pixels, as written by undo and redo.
+     * @param column Column of the tile.
+     * @param row Row of the tile.
+     * @param width Width of the tile, in pixels.
+     * @param height Height of the tile, in pixels.
+     * @param data Buffer holding the compressed pixels.
+     * @param offset Offset of the compressed pixels in data.
+     * @param length Length of the compressed pixels.
+     */
+    void onTile(int column, int row, int width, int height,
+		byte data[], int offset, int length);
+  }
+
+  /** Coordinate resolution, in steps per pixel. */
+  public static final int QUANTA_PER_PIXEL = 4;
+  /** Largest pointer id the tag byte can hold. */
+  public static final int MAX_POINTER_ID = 31;
+  /** Largest size of any encoded record, in bytes, not counting the pixels
+   * of a tile record. */
+  public static final int MAX_RECORD_SIZE = 1 + 5 * 5;
+
+  private static final int TYPE_TOUCH_START = 1;
+  private static final int TYPE_DRAG = 2;
+  private static final int TYPE_TOUCH_STOP = 3;
+  private static final int TYPE_ERASE_BLOT = 4;
+  private static final int TYPE_TILE = 5;
+
+  /** Last quantized point of each pointer. */
+  private final int lastX_[] = new int[MAX_POINTER_ID + 1];
+  private final int lastY_[] = new int[MAX_POINTER_ID + 1];
+
+  /** Decode position; scratch for decode(). */
+  private int pos_ = 0;
+
+  /** @brief Encodes the start of a stroke.
+   *
+   * @param out Buffer with room for MAX_RECORD_SIZE bytes at offset.
+   * @param offset Where to write the record.
+   * @param id Pointer id.
+   * @param x x-coordinate of the first point.
+   * @param y y-coordinate of the first point.
+   * @param crayon Index of the selected crayon.
+   * @param width Width of the selected crayon.
+   * @return Offset just past the record.
+   */
+  public int encodeTouchStart(byte out[], int offset, int id, float x, float y,
+			      int crayon, float width) {
+    int qx = quantize(x);
+    int qy = quantize(y);
+    lastX_[id] = qx;
+    lastY_[id] = qy;
+    out[offset++] = (byte)tag(TYPE_TOUCH_START, id);
+    offset = putVarint(out, offset, crayon);
+    offset = putVarint(out, offset, zigzag(quantize(width)));
+    offset = putVarint(out, offset, zigzag(qx));
+    return putVarint(out, offset, zigzag(qy));
+  }
+
+  /** @brief Encodes a drag sample as an offset from the pointer's last
+   * point.
+   *
+   * @param out Buffer with room for MAX_RECORD_SIZE bytes at offset.
+   * @param offset Where to write the record.
+   * @param id Pointer id.
+   * @param x x-coordinate of the sample.
+   * @param y y-coordinate of the sample.
+   * @return Offset just past the record.
+   */
+  public int encodeDrag(byte out[], int offset, int id, float x, float y) {
+    int qx = quantize(x);
+    int qy = quantize(y);
+    out[offset++] = (byte)tag(TYPE_DRAG, id);
+    offset = putVarint(out, offset, zigzag(qx - lastX_[id]));
+    offset = putVarint(out, offset, zigzag(qy - lastY_[id]));
+    lastX_[id] = qx;
+    lastY_[id] = qy;
+    return offset;
+  }
+
+  /** @brief Encodes the end of a stroke.
+   *
+   * @param out Buffer with room for MAX_RECORD_SIZE bytes at offset.
+   * @param offset Where to write the record.
+   * @param id Pointer id.
+   * @return Offset just past the record.
+   */
+  public int encodeTouchStop(byte out[], int offset, int id) {
+    out[offset++] = (byte)tag(TYPE_TOUCH_STOP, id);
+    return offset;
+  }
+
+  /** @brief Encodes an erase blot.
+   *
+   * @param out Buffer with room for MAX_RECORD_SIZE bytes at offset.
+   * @param offset Where to write the record.
+   * @param x x-coordinate of the blot center.
+   * @param y y-coordinate of the blot center.
+   * @param width Width of the blot.
+   * @return Offset just past the record.
+   */
+  public int encodeEraseBlot(byte out[], int offset,
+			     float x, float y, float width) {
+    out[offset++] = (byte)tag(TYPE_ERASE_BLOT, 0);
+    offset = putVarint(out, offset, zigzag(quantize(x)));
+    offset = putVarint(out, offset, zigzag(quantize(y)));
+    return putVarint(out, offset, zigzag(quantize(width)));
+  }
+
+  /** @brief Encodes a tile of pixels.
+   *
+   * @param out Buffer with room for MAX_RECORD_SIZE plus length bytes at
+   *     offset.
+   * @param offset Where to write the record.
+   * @param column Column of the tile.
+   * @param row Row of the tile.
+   * @param width Width of the tile, in pixels.
+   * @param height Height of the tile, in pixels.
+   * @param data Compressed pixels of the tile.
+   * @param length Length of the compressed pixels.
+   * @return Offset just past the record.
+   */
+  public int encodeTile(byte out[], int offset, int column, int row,
+			int width, int height, byte data[], int length) {
+    out[offset++] = (byte)tag(TYPE_TILE, 0);
+    offset = putVarint(out, offset, column);
+    offset = putVarint(out, offset, row);
+    offset = putVarint(out, offset, width);
+    offset = putVarint(out, offset, height);
+    offset = putVarint(out, offset, length);
+    System.arraycopy(data, 0, out, offset, length);
+    return offset + length;
+  }
+
+  /** @brief Decodes records, stopping at the first incomplete or unknown
+   * one.
+   *
+   * @param data Encoded records.
+   * @param offset Offset of the first record.
+   * @param end Offset just past the encoded data.
+   * @param listener Receives the records, or null to only validate them.
+   * @return Offset just past the last complete record.
+   */
+  public int decode(byte data[], int offset, int end, Listener listener) {
+    while (offset < end) {
+      int tag = data[offset] & 0xff;
+      int id = tag & MAX_POINTER_ID;
+      pos_ = offset + 1;
+      switch (tag >>> 5) {
+      case TYPE_TOUCH_START: {
+	long crayon = getVarint(data, end);
+	long width = getVarint(data, end);
+	long qx = getVarint(data, end);
+	long qy = getVarint(data, end);
+	if (qy < 0) {
+	  return offset;
+	}
+	lastX_[id] = unzigzag(qx);
+	lastY_[id] = unzigzag(qy);
+	if (listener != null) {
+	  listener.onTouchStart(id, dequantize(lastX_[id]),
+				dequantize(lastY_[id]), (int)crayon,
+				dequantize(unzigzag(width)));
+	}
+	break;
+      }
+      case TYPE_DRAG: {
+	long dx = getVarint(data, end);
+	long dy = getVarint(data, end);
+	if (dy < 0) {
+	  return offset;
+	}
+	lastX_[id] += unzigzag(dx);
+	lastY_[id] += unzigzag(dy);
+	if (listener != null) {
+	  listener.onDrag(id, dequantize(lastX_[id]), dequantize(lastY_[id]));
+	}
+	break;
+      }
+      case TYPE_TOUCH_STOP:
+	if (listener != null) {
+	  listener.onTouchStop(id);
+	}
+	break;
+      case TYPE_ERASE_BLOT: {
+	long x = getVarint(data, end);
+	long y = getVarint(data, end);
+	long width = getVarint(data, end);
+	if (width < 0) {
+	  return offset;
+	}
+	if (listener != null) {
+	  listener.onEraseBlot(dequantize(unzigzag(x)),
+			       dequantize(unzigzag(y)),
+			       dequantize(unzigzag(width)));
+	}
+	break;
+      }
+      case TYPE_TILE: {
+	long column = getVarint(data, end);
+	long row = getVarint(data, end);
+	long width = getVarint(data, end);
+	long height = getVarint(data, end);
+	long length = getVarint(data, end);
+	if (length < 0 || length > end - pos_) {
+	  return offset;
+	}
+	if (listener != null) {
+	  listener.onTile((int)column, (int)row, (int)width, (int)height,
+			  data, pos_, (int)length);
+	}
+	pos_ += (int)length;
+	break;
+      }
+      default:
+	return offset;
+      }
+      offset = pos_;
+    }
+    return offset;
+  }
+
+  private static int tag(int type, int id) {
+    return (type << 5) | id;
+  }
+
+  private static int quantize(float value) {
+    return Math.round(value * QUANTA_PER_PIXEL);
+  }
+
+  private static float dequantize(int value) {
+    return (float)value / QUANTA_PER_PIXEL;
+  }
+
+  private static int zigzag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  private static int unzigzag(long value) {
+    int v = (int)value;
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  /** @brief Writes an unsigned varint, seven bits per byte, low bits first.
+   */
+  private static int putVarint(byte out[], int offset, int value) {
+    while ((value & ~0x7f) != 0) {
+      out[offset++] = (byte)((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out[offset++] = (byte)value;
+    return offset;
+  }
+
+  /** @brief Reads an unsigned varint at pos_ and advances pos_.
+   *
+   * Once a read fails, every following read fails too, so callers only need
+   * to check the last value of a record.
+   *
+   * @return The value, or -1 if the data ends inside it or pos_ is already
+   *     past a failed read.
+   */
+  private long getVarint(byte data[], int end) {
+    if (pos_ < 0) {
+      return -1;
+    }
+    long value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      if (pos_ >= end) {
+	pos_ = -1;
+	return -1;
+      }
+      int b = data[pos_++];
+      value |= (long)(b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+	return value & 0xffffffffL;
+      }
+    }
+    pos_ = -1;
+    return -1;
+  }
+}
@@ -0,0 +1,445 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Append-only binary journal of everything that changes the painting,
+ * encoded with StrokeCodec.
+ *
+ * Recording happens on the UI thread and only appends to an in-memory buffer;
+ * a writer thread batches the buffer out to the journal file and syncs the
+ * file to storage at most every SYNC_INTERVAL_MILLIS. Replaying the journal
+ * on the next launch restores the painting.
+ *
+ * A crash can leave a partially-written record at the end of the file. Replay
+ * stops at the first incomplete or unknown record and truncates the file
+ * there, so later records are never appended after garbage.
+ */
+public class StrokeJournal {
+  private static final String TAG = "StrokeJournal";
+
+  /** File header: "DGJ" followed by the format version. */
+  private static final int MAGIC = 0x44474a02;
+  private static final int HEADER_SIZE = 4;
+
+  /** How long the writer lets records pile up before writing them out. */
+  private static final long WRITE_DELAY_MILLIS = 250;
+  /** Minimum time between syncs of the journal file to storage. */
+  private static final long SYNC_INTERVAL_MILLIS = 2000;
+
+  private final File file_;
+
+  /** Guards the pending buffer and the writer state flags. */
+  private final Object lock_ = new Object();
+  /** Records waiting to be written; filled on the UI thread. */
+  private byte pending_[] = new byte[16 * 1024];
+  private int pendingSize_ = 0;
+  /** Encodes records into pending_. */
+  private final StrokeCodec encoder_ = new StrokeCodec();
+  /** Buffer being written by the writer thread; swapped with pending_. */
+  private byte spare_[] = new byte[16 * 1024];
+  private boolean syncRequested_ = false;
+  private boolean truncateRequested_ = false;
+  private boolean closing_ = false;
+
+  /** Guards opening and truncating the file. */
+  private final Object fileLock_ = new Object();
+  private boolean validated_ = false;
+
+  /** Writer thread state. */
+  private Thread writer_ = null;
+  private FileOutputStream out_ = null;
+  private boolean unsynced_ = false;
+  private long lastSyncMillis_ = 0;
+
+  /** @brief Constructor.
+   *
+   * @param file Journal file. It is created on the first write if missing.
+   */
+  public StrokeJournal(File file) {
+    file_ = file;
+  }
+
+  /** @brief Replays the journal.
+   *
+   * Call this before recording anything new. Stops at the first damaged
+   * record, and cuts the file off there.
+   *
+   * @param listener Receives the journaled events, in order.
+   */
+  public void replay(StrokeCodec.Listener listener) {
+    synchronized (fileLock_) {
+      byte data[] = readFile();
+      int valid = 0;
+      if (data != null && data.length >= HEADER_SIZE &&
+	  getInt(data, 0) == MAGIC) {
+	valid = new StrokeCodec().decode(
+	  data, HEADER_SIZE, data.length, listener);
+      }
+      truncate(valid);
+      validated_ = true;
+    }
+  }
+
+  public void recordTouchStart(int id, float x, float y,
+			       int crayon, float width) {
+    synchronized (lock_) {
+      ensureCapacity(0);
+      pendingSize_ = encoder_.encodeTouchStart(
+	pending_, pendingSize_, id, x, y, crayon, width);
+      recorded();
+    }
+  }
+
+  public void recordDrag(int id, float x, float y) {
+    synchronized (lock_) {
+      ensureCapacity(0);
+      pendingSize_ = encoder_.encodeDrag(pending_, pendingSize_, id, x, y);
+      recorded();
+    }
+  }
+
+  public void recordTouchStop(int id) {
+    synchronized (lock_) {
+      ensureCapacity(0);
+      pendingSize_ = encoder_.encodeTouchStop(pending_, pendingSize_, id);
+      recorded();
+    }
+  }
+
+  public void recordEraseBlot(float x, float y, float width) {
+    synchronized (lock_) {
+      ensureCapacity(0);
+      pendingSize_ = encoder_.encodeEraseBlot(
+	pending_, pendingSize_, x, y, width);
+      recorded();
+    }
+  }
+
+  public void recordTile(int column, int row, int width, int height,
+			 byte data[]) {
+    synchronized (lock_) {
+      ensureCapacity(data.length);
+      pendingSize_ = encoder_.encodeTile(
+	pending_, pendingSize_, column, row, width, height, data, data.length);
+      recorded();
+    }
+  }
+
+  /** @brief Asks the writer to write and sync everything recorded so far,
+   * without waiting for it.
+   */
+  public void flush() {
+    synchronized (lock_) {
+      if (writer_ != null) {
+	syncRequested_ = true;
+	lock_.notify();
+      }
+    }
+  }
+
+  /** @brief Drops everything recorded so far, once the painting it
+   * produced has been saved elsewhere.
+   *
+   * The writer empties the file before it writes any record added after
+   * this call.
+   */
+  public void checkpoint() {
+    synchronized (lock_) {
+      pendingSize_ = 0;
+      truncateRequested_ = true;
+      syncRequested_ = true;
+      recorded();
+    }
+  }
+
+  /** @brief Writes and syncs everything recorded so far, and stops the
+   * writer. The journal must not be used afterwards.
+   */
+  public void close() {
+    Thread writer;
+    synchronized (lock_) {
+      closing_ = true;
+      lock_.notify();
+      writer = writer_;
+    }
+    if (writer == null) {
+      writePending();
+      closeFile();
+    } else {
+      try {
+	writer.join();
+      } catch (InterruptedException e) {
+	Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** @brief Called with lock_ held after a record is added, or a sync
+   * requested. Wakes (or starts) the writer.
+   */
+  private void recorded() {
+    if (closing_) {
+      return;
+    }
+    if (writer_ == null) {
+      writer_ = new Thread(new Runnable() {
+	  @Override
+	    public void run() {
+	    runWriter();
+	  }
+	}, TAG);
+      writer_.start();
+    } else {
+      lock_.notify();
+    }
+  }
+
+  /** @brief Body of the writer thread.
+   */
+  private void runWriter() {
+    try {
+      while (true) {
+	boolean closing;
+	synchronized (lock_) {
+	  while (pendingSize_ == 0 && !closing_ && !syncRequested_) {
+	    if (!unsynced_) {
+	      lock_.wait();
+	    } else {
+	      long wait = lastSyncMillis_ + SYNC_INTERVAL_MILLIS -
+		SystemClock.uptimeMillis();
+	      if (wait <= 0) {
+		break;
+	      }
+	      lock_.wait(wait);
+	    }
+	  }
+	  closing = closing_ || syncRequested_;
+	}
+	if (!closing) {
+	  // Let more records pile up, so each write covers a batch.
+	  Thread.sleep(WRITE_DELAY_MILLIS);
+	}
+
+	boolean sync;
+	synchronized (lock_) {
+	  sync = syncRequested_ || closing_;
+	  syncRequested_ = false;
+	  closing = closing_;
+	}
+	writePending();
+	if (unsynced_ &&
+	    (sync || SystemClock.uptimeMillis() - lastSyncMillis_ >=
+	     SYNC_INTERVAL_MILLIS)) {
+	  syncFile();
+	}
+	if (closing) {
+	  closeFile();
+	  return;
+	}
+      }
+    } catch (InterruptedException e) {
+      closeFile();
+    }
+  }
+
+  /** @brief Swaps out the pending buffer and appends it to the file,
+   * emptying the file first if a checkpoint asked for it.
+   */
+  private void writePending() {
+    byte buffer[];
+    int size;
+    boolean truncate;
+    synchronized (lock_) {
+      buffer = pending_;
+      size = pendingSize_;
+      pending_ = spare_;
+      pendingSize_ = 0;
+      spare_ = buffer;
+      truncate = truncateRequested_;
+      truncateRequested_ = false;
+    }
+    if (truncate) {
+      closeFile();
+      synchronized (fileLock_) {
+	file_.delete();
+      }
+    }
+    if (size == 0) {
+      return;
+    }
+    try {
+      openFile();
+      out_.write(buffer, 0, size);
+      unsynced_ = true;
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to write journal", e);
+    }
+  }
+
+  private void openFile() throws IOException {
+    if (out_ != null) {
+      return;
+    }
+    synchronized (fileLock_) {
+      if (!validated_) {
+	// Nobody replayed the journal; still drop any damaged tail.
+	replay(null);
+      }
+      boolean empty = file_.length() == 0;
+      out_ = new FileOutputStream(file_, true);
+      if (empty) {
+	byte header[] = new byte[HEADER_SIZE];
+	putInt(header, 0, MAGIC);
+	out_.write(header);
+      }
+    }
+  }
+
+  private void syncFile() {
+    try {
+      if (out_ != null) {
+	out_.getFD().sync();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to sync journal", e);
+    }
+    unsynced_ = false;
+    lastSyncMillis_ = SystemClock.uptimeMillis();
+  }
+
+  private void closeFile() {
+    if (out_ != null) {
+      syncFile();
+      try {
+	out_.close();
+      } catch (IOException e) {
+	Log.w(TAG, "Unable to close journal", e);
+      }
+      out_ = null;
+    }
+  }
+
+  /** @brief Reads the whole journal file.
+   *
+   * @return The contents, or null if there is no readable file.
+   */
+  private byte[] readFile() {
+    if (!file_.exists()) {
+      return null;
+    }
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(file_);
+      byte data[] = new byte[(int)file_.length()];
+      int read = 0;
+      while (read < data.length) {
+	int count = in.read(data, read, data.length - read);
+	if (count < 0) {
+	  break;
+	}
+	read += count;
+      }
+      if (read < data.length) {
+	byte partial[] = new byte[read];
+	System.arraycopy(data, 0, partial, 0, read);
+	data = partial;
+      }
+      return data;
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to read journal", e);
+      return null;
+    } finally {
+      if (in != null) {
+	try {
+	  in.close();
+	} catch (IOException e) {
+	  // ignored
+	}
+      }
+    }
+  }
+
+  /** @brief Cuts the journal file off after the given length.
+   *
+   * @param length Length to keep; 0 removes the file.
+   */
+  private void truncate(int length) {
+    if (!file_.exists()) {
+      return;
+    }
+    if (length == 0) {
+      file_.delete();
+      return;
+    }
+    if (file_.length() == length) {
+      return;
+    }
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file_, "rw");
+      raf.setLength(length);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to truncate journal", e);
+    } finally {
+      if (raf != null) {
+	try {
+	  raf.close();
+	} catch (IOException e) {
+	  // ignored
+	}
+      }
+    }
+  }
+
+  /** @brief Grows the pending buffer (with lock_ held) if it has no room
+   * for another record.
+   *
+   * @param extra Bytes the record needs on top of MAX_RECORD_SIZE.
+   */
+  private void ensureCapacity(int extra) {
+    int needed = pendingSize_ + StrokeCodec.MAX_RECORD_SIZE + extra;
+    if (needed > pending_.length) {
+      byte grown[] = new byte[Math.max(pending_.length * 2, needed)];
+      System.arraycopy(pending_, 0, grown, 0, pendingSize_);
+      pending_ = grown;
+    }
+  }
+
+  private static void putInt(byte data[], int offset, int value) {
+    data[offset] = (byte)(value >>> 24);
+    data[offset + 1] = (byte)(value >>> 16);
+    data[offset + 2] = (byte)(value >>> 8);
+    data[offset + 3] = (byte)value;
+  }
+
+  private static int getInt(byte data[], int offset) {
+    return ((data[offset] & 0xff) << 24) |
+      ((data[offset + 1] & 0xff) << 16) |
+      ((data[offset + 2] & 0xff) << 8) |
+      (data[offset + 3] & 0xff);
+  }
+}
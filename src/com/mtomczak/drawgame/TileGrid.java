@@ -0,0 +1,99 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.graphics.Rect;
+
+/**
+ * Splits the painting into square tiles and tracks which rows of tiles
+ * changed.
+ */
+public class TileGrid {
+  /** Width and height of a tile, in pixels. */
+  public static final int TILE_SIZE = 64;
+
+  private int width_ = 0;
+  private int height_ = 0;
+  private int rows_ = 0;
+  /** Set if any tile of the row is dirty. */
+  private boolean rowDirty_[] = new boolean[0];
+
+  /** @brief Sets the size of the area covered by the grid, and marks every
+   * tile dirty.
+   *
+   * @param width Width, in pixels.
+   * @param height Height, in pixels.
+   */
+  public void resize(int width, int height) {
+    width_ = width;
+    height_ = height;
+    rows_ = (height + TILE_SIZE - 1) / TILE_SIZE;
+    if (rowDirty_.length < rows_) {
+      rowDirty_ = new boolean[rows_];
+    }
+    markAll();
+  }
+
+  /** @brief Marks the tiles overlapping a rectangle dirty.
+   *
+   * @param bounds Changed area, in pixels; clipped to the grid.
+   */
+  public void markDirty(Rect bounds) {
+    if (bounds.right <= 0 || bounds.bottom <= 0 ||
+	bounds.left >= width_ || bounds.top >= height_) {
+      return;
+    }
+    int top = Math.max(bounds.top, 0) / TILE_SIZE;
+    int bottom = (Math.min(bounds.bottom, height_) - 1) / TILE_SIZE;
+    for (int row = top; row <= bottom; row++) {
+      rowDirty_[row] = true;
+    }
+  }
+
+  /** @brief Marks every tile dirty.
+   */
+  public void markAll() {
+    for (int row = 0; row < rows_; row++) {
+      rowDirty_[row] = true;
+    }
+  }
+
+  /** @brief Marks every tile clean.
+   */
+  public void clear() {
+    for (int row = 0; row < rows_; row++) {
+      rowDirty_[row] = false;
+    }
+  }
+
+  /** Check whether any tile of a row is dirty.
+   *
+   * @param row Row of tiles.
+   * @return True if a tile of the row changed since the last clear().
+   */
+  public boolean isRowDirty(int row) {
+    return rowDirty_[row];
+  }
+
+  /** Get the number of tile rows.
+   *
+   * @return Number of rows; the last one may be partial.
+   */
+  public int getRows() {
+    return rows_;
+  }
+}
@@ -0,0 +1,203 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free queue of touch samples from one producer thread to one consumer
+ * thread.
+ *
+ * Events live in preallocated parallel arrays used as a ring, so neither side
+ * allocates or takes a lock. The producer only writes the tail index and the
+ * consumer only writes the head index; each publishes its index through a
+ * volatile write after touching the slots. An idle consumer parks, and the
+ * producer unparks it after adding an event.
+ *
+ * The producer never blocks on a drag sample: if the ring is full the drag
+ * is dropped and counted, and the stroke joins the samples either side of it
+ * with a straight line. Touch starts and stops are never dropped; the
+ * producer yields until the consumer makes room, which takes at most one
+ * drain() of maxEvents, as the consumer frees its slots after every call.
+ */
+public class TouchEventQueue {
+  /**
+   * Receives the drained events.
+   */
+  public interface Consumer {
+    /**
+     * Called for a touch start.
+     * @param id Pointer id.
+     * @param x x-coordinate of the first point.
+     * @param y y-coordinate of the first point.
+     */
+    void onTouchStart(int id, float x, float y);
+
+    /**
+     * Called for a drag sample.
+     * @param id Pointer id.
+     * @param x x-coordinate of the sample.
+     * @param y y-coordinate of the sample.
+     * @param eventTime Time the sample was taken, in uptimeMillis.
+     */
+    void onDrag(int id, float x, float y, long eventTime);
+
+    /**
+     * Called for a touch stop.
+     * @param id Pointer id.
+     */
+    void onTouchStop(int id);
+  }
+
+  private static final byte TYPE_TOUCH_START = 0;
+  private static final byte TYPE_DRAG = 1;
+  private static final byte TYPE_TOUCH_STOP = 2;
+
+  private final int mask_;
+  private final byte types_[];
+  private final byte ids_[];
+  private final float xs_[];
+  private final float ys_[];
+  private final long times_[];
+
+  /** Index of the next event to consume; written by the consumer only. */
+  private volatile long head_ = 0;
+  /** Index of the next free slot; written by the producer only. */
+  private volatile long tail_ = 0;
+
+  /** The consumer, while it is parked waiting for events. */
+  private volatile Thread waiter_ = null;
+
+  /** Drag samples dropped because the ring was full; producer only. */
+  private int droppedDrags_ = 0;
+
+  /** @brief Constructor.
+   *
+   * @param capacity Number of events the ring holds; rounded up to a power
+   *     of two.
+   */
+  public TouchEventQueue(int capacity) {
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    mask_ = size - 1;
+    types_ = new byte[size];
+    ids_ = new byte[size];
+    xs_ = new float[size];
+    ys_ = new float[size];
+    times_ = new long[size];
+  }
+
+  public void putTouchStart(int id, float x, float y) {
+    put(TYPE_TOUCH_START, id, x, y, 0);
+  }
+
+  /** @brief Queues a drag sample, or drops it if the ring is full.
+   */
+  public void putDrag(int id, float x, float y, long eventTime) {
+    if (tail_ - head_ > mask_) {
+      droppedDrags_++;
+      wake();
+      return;
+    }
+    put(TYPE_DRAG, id, x, y, eventTime);
+  }
+
+  public void putTouchStop(int id) {
+    put(TYPE_TOUCH_STOP, id, 0.0f, 0.0f, 0);
+  }
+
+  /** Get the number of drag samples dropped because the ring was full.
+   *
+   * Read it on the producer thread.
+   */
+  public int getDroppedDrags() {
+    return droppedDrags_;
+  }
+
+  /** @brief Hands queued events to the consumer. Only call this from the
+   * consumer thread.
+   *
+   * @param consumer Receives the events, in order.
+   * @param maxEvents Most events to hand over in this call.
+   * @return Number of events drained.
+   */
+  public int drain(Consumer consumer, int maxEvents) {
+    long head = head_;
+    long tail = Math.min(tail_, head + maxEvents);
+    for (long i = head; i < tail; i++) {
+      int slot = (int)i & mask_;
+      int id = ids_[slot];
+      switch (types_[slot]) {
+      case TYPE_TOUCH_START:
+	consumer.onTouchStart(id, xs_[slot], ys_[slot]);
+	break;
+      case TYPE_DRAG:
+	consumer.onDrag(id, xs_[slot], ys_[slot], times_[slot]);
+	break;
+      default:
+	consumer.onTouchStop(id);
+	break;
+      }
+    }
+    head_ = tail;
+    return (int)(tail - head);
+  }
+
+  /** @brief Parks the consumer thread until an event is queued, wake() is
+   * called or the thread is interrupted.
+   */
+  public void await() {
+    if (head_ != tail_) {
+      return;
+    }
+    waiter_ = Thread.currentThread();
+    // Re-check after publishing waiter_, so a racing put() is not missed.
+    if (head_ == tail_ && !Thread.currentThread().isInterrupted()) {
+      LockSupport.park(this);
+    }
+    waiter_ = null;
+  }
+
+  /** @brief Wakes the consumer if it is parked in await().
+   */
+  public void wake() {
+    Thread waiter = waiter_;
+    if (waiter != null) {
+      LockSupport.unpark(waiter);
+    }
+  }
+
+  private void put(byte type, int id, float x, float y, long time) {
+    long tail = tail_;
+    while (tail - head_ > mask_) {
+      // Full; only starts and stops get here, and they must not be lost.
+      // The consumer frees its slots after each bounded drain().
+      wake();
+      Thread.yield();
+    }
+    int slot = (int)tail & mask_;
+    types_[slot] = type;
+    ids_[slot] = (byte)id;
+    xs_[slot] = x;
+    ys_[slot] = y;
+    times_[slot] = time;
+    tail_ = tail + 1;
+    wake();
+  }
+}
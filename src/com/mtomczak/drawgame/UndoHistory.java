@@ -0,0 +1,637 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Undo and redo history of the painting, kept as compressed tiles.
+ *
+ * A step covers everything drawn while any owner (a pointer, or the shake
+ * eraser) is between its begin() and end(). Before a tile is first changed
+ * within a step, capture() saves its pixels; end() then saves the same tiles
+ * again as they ended up. Undoing or redoing a step only restores its own
+ * tiles, so the cost is bounded by the tiles the step touched, not by the
+ * size of the painting.
+ *
+ * capture() and end() only copy pixels; a compressor thread Deflates the
+ * copies, so a burst of new tiles never stalls the thread that draws. When
+ * the history grows past its byte budget, the oldest steps are dropped.
+ * undo() and redo() never wait for the compressor: they compress whatever
+ * tiles of their step it has not got to yet themselves, so undoing right
+ * after a big shake does not queue behind every older step.
+ */
+public class UndoHistory {
+  /**
+   * Receives the tiles restored by undo() and redo().
+   */
+  public interface TileListener {
+    /**
+     * Called after a tile was restored.
+     * @param column Column of the tile.
+     * @param row Row of the tile.
+     * @param width Width of the tile, in pixels.
+     * @param height Height of the tile, in pixels.
+     * @param data Compressed pixels of the tile.
+     */
+    void onTileRestored(int column, int row, int width, int height,
+			byte data[]);
+  }
+
+  /** Largest owner id begin() and end() accept. */
+  public static final int MAX_OWNER = 63;
+
+  private static final int TILE_SIZE = TileGrid.TILE_SIZE;
+  /** How long the compressor waits for more work before it exits. */
+  private static final long COMPRESSOR_IDLE_MILLIS = 5000;
+  /** Most free pixel buffers kept for reuse. */
+  private static final int MAX_FREE_BUFFERS = 32;
+
+  /** One undoable change: its tiles before and after. */
+  private static class Step {
+    int tiles_[];
+    /** Pixel count of each tile; edge tiles are partial. */
+    int sizes_[];
+    byte before_[][];
+    byte after_[][];
+    /** Copied pixels still waiting for the compressor. */
+    int rawBefore_[][];
+    int rawAfter_[][];
+    int count_ = 0;
+    int bytes_ = 0;
+    /** Set once the step is in the undo or redo list. */
+    boolean kept_ = false;
+    /** Set once the step is dropped; the compressor discards its work. */
+    boolean dropped_ = false;
+
+    Step(int capacity) {
+      tiles_ = new int[capacity];
+      sizes_ = new int[capacity];
+      before_ = new byte[capacity][];
+      after_ = new byte[capacity][];
+      rawBefore_ = new int[capacity][];
+      rawAfter_ = new int[capacity][];
+    }
+  }
+
+  private final int byteBudget_;
+
+  /** Guards everything the compressor shares with the other threads. */
+  private final Object lock_ = new Object();
+  private final ArrayList<Step> undo_ = new ArrayList<Step>();
+  private final ArrayList<Step> redo_ = new ArrayList<Step>();
+  private int bytes_ = 0;
+  /** Steps with tiles waiting for the compressor, oldest first. */
+  private final ArrayList<Step> compressQueue_ = new ArrayList<Step>();
+  /** Pixel buffers free for capture() and end(). */
+  private final ArrayList<int[]> freeBuffers_ = new ArrayList<int[]>();
+  private Thread compressor_ = null;
+  /** Copy the compressor is reading. Only the compressor frees it. */
+  private int compressing_[] = null;
+
+  /** Step being recorded; null outside begin() / end(). */
+  private Step current_ = null;
+  /** Owners between begin() and end(), one bit each. */
+  private long owners_ = 0;
+  /** Serial of the current step, and the step each tile was last captured
+   * in; tells whether a tile was already captured. */
+  private int serial_ = 0;
+  private int capturedIn_[] = new int[0];
+  private int columns_ = 0;
+
+  /** Scratch for restoreTile(). */
+  private final int pixels_[] = new int[TILE_SIZE * TILE_SIZE];
+  private final byte raw_[] = new byte[TILE_SIZE * TILE_SIZE * 4];
+  private final Inflater inflater_ = new Inflater();
+  private final Rect tile_ = new Rect();
+
+  /** Deflaters of the compressor thread, and of undo() and redo(). */
+  private final TileDeflater compressorDeflater_ = new TileDeflater();
+  private final TileDeflater callerDeflater_ = new TileDeflater();
+
+  /** @brief Constructor.
+   *
+   * @param byteBudget Most bytes of compressed tiles to keep.
+   */
+  public UndoHistory(int byteBudget) {
+    byteBudget_ = byteBudget;
+  }
+
+  /** @brief Begins a step for an owner, or joins the one already being
+   * recorded. Does nothing if the owner already began.
+   *
+   * @param owner Owner id, from 0 to MAX_OWNER.
+   */
+  public void begin(int owner) {
+    long bit = 1L << owner;
+    if ((owners_ & bit) != 0) {
+      return;
+    }
+    if (owners_ == 0) {
+      current_ = new Step(16);
+      serial_++;
+    }
+    owners_ |= bit;
+  }
+
+  /** @brief Saves the tiles a change is about to touch, if this step did not
+   * touch them yet. Does nothing outside a step.
+   *
+   * @param bitmap Painting bitmap.
+   * @param bounds Area about to change.
+   */
+  public void capture(Bitmap bitmap, Rect bounds) {
+    if (current_ == null) {
+      return;
+    }
+    int columns = (bitmap.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+    int rows = (bitmap.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+    if (columns != columns_ || capturedIn_.length < columns * rows) {
+      // Tile numbering changed with the bitmap; older steps no longer fit.
+      resetTiles(columns, rows);
+    }
+    int left = Math.max(bounds.left, 0) / TILE_SIZE;
+    int top = Math.max(bounds.top, 0) / TILE_SIZE;
+    int right = Math.min((bounds.right - 1) / TILE_SIZE, columns - 1);
+    int bottom = Math.min((bounds.bottom - 1) / TILE_SIZE, rows - 1);
+    for (int row = top; row <= bottom; row++) {
+      for (int column = left; column <= right; column++) {
+	int tile = row * columns + column;
+	if (capturedIn_[tile] == serial_) {
+	  continue;
+	}
+	capturedIn_[tile] = serial_;
+	synchronized (lock_) {
+	  Step step = current_;
+	  if (step.count_ == step.tiles_.length) {
+	    growStep(step);
+	  }
+	  int i = step.count_++;
+	  step.tiles_[i] = tile;
+	  step.sizes_[i] = copyTile(bitmap, column, row);
+	  step.rawBefore_[i] = takeCopy();
+	  queueStep(step);
+	}
+      }
+    }
+  }
+
+  /** @brief Ends a step for an owner. Once no owner is left, the step's
+   * tiles are saved as they ended up and it becomes the step undo()
+   * reverts. Does nothing if the owner did not begin.
+   *
+   * @param owner Owner id, from 0 to MAX_OWNER.
+   * @param bitmap Painting bitmap.
+   */
+  public void end(int owner, Bitmap bitmap) {
+    long bit = 1L << owner;
+    if ((owners_ & bit) == 0) {
+      return;
+    }
+    owners_ &= ~bit;
+    if (owners_ != 0) {
+      return;
+    }
+    Step step = current_;
+    current_ = null;
+    if (step.count_ == 0) {
+      return;
+    }
+    synchronized (lock_) {
+      for (int i = 0; i < step.count_; i++) {
+	int tile = step.tiles_[i];
+	copyTile(bitmap, tile % columns_, tile / columns_);
+	step.rawAfter_[i] = takeCopy();
+      }
+      queueStep(step);
+      while (!redo_.isEmpty()) {
+	dropStep(redo_.remove(redo_.size() - 1));
+      }
+      undo_.add(step);
+      step.kept_ = true;
+      bytes_ += step.bytes_;
+      trimToBudget();
+    }
+  }
+
+  /** Check whether a step is being recorded.
+   *
+   * @return True between the first begin() and the last end().
+   */
+  public boolean isRecording() {
+    return current_ != null;
+  }
+
+  /** @brief Reverts the last step.
+   *
+   * @param bitmap Painting bitmap.
+   * @param listener Told about each restored tile.
+   * @return True if there was a step to undo. Nothing is undone while a step
+   *     is being recorded.
+   */
+  public boolean undo(Bitmap bitmap, TileListener listener) {
+    Step step;
+    synchronized (lock_) {
+      if (current_ != null || undo_.isEmpty()) {
+	return false;
+      }
+      step = undo_.remove(undo_.size() - 1);
+      redo_.add(step);
+      compressCopies(step, false);
+    }
+    restoreStep(bitmap, step, step.before_, listener);
+    return true;
+  }
+
+  /** @brief Re-applies the last undone step.
+   *
+   * @param bitmap Painting bitmap.
+   * @param listener Told about each restored tile.
+   * @return True if there was a step to redo.
+   */
+  public boolean redo(Bitmap bitmap, TileListener listener) {
+    Step step;
+    synchronized (lock_) {
+      if (current_ != null || redo_.isEmpty()) {
+	return false;
+      }
+      step = redo_.remove(redo_.size() - 1);
+      undo_.add(step);
+      compressCopies(step, true);
+    }
+    restoreStep(bitmap, step, step.after_, listener);
+    return true;
+  }
+
+  /** @brief Drops the whole history.
+   */
+  public void clear() {
+    synchronized (lock_) {
+      while (!undo_.isEmpty()) {
+	dropStep(undo_.remove(undo_.size() - 1));
+      }
+      while (!redo_.isEmpty()) {
+	dropStep(redo_.remove(redo_.size() - 1));
+      }
+      bytes_ = 0;
+    }
+  }
+
+  /** @brief Writes compressed tile pixels into a bitmap, clipped to it.
+   *
+   * @param bitmap Bitmap to write into.
+   * @param column Column of the tile.
+   * @param row Row of the tile.
+   * @param width Width of the tile, in pixels.
+   * @param height Height of the tile, in pixels.
+   * @param data Compressed pixels.
+   * @param offset Offset of the compressed pixels in data.
+   * @param length Length of the compressed pixels.
+   * @return True if the tile was written.
+   */
+  public boolean restoreTile(Bitmap bitmap, int column, int row,
+			     int width, int height,
+			     byte data[], int offset, int length) {
+    int count = width * height;
+    if (width <= 0 || height <= 0 || count > pixels_.length) {
+      return false;
+    }
+    inflater_.reset();
+    inflater_.setInput(data, offset, length);
+    try {
+      if (inflater_.inflate(raw_, 0, count * 4) != count * 4) {
+	return false;
+      }
+    } catch (DataFormatException e) {
+      return false;
+    }
+    for (int i = 0, j = 0; i < count; i++, j += 4) {
+      pixels_[i] = ((raw_[j] & 0xff) << 24) | ((raw_[j + 1] & 0xff) << 16) |
+	((raw_[j + 2] & 0xff) << 8) | (raw_[j + 3] & 0xff);
+    }
+    int x = column * TILE_SIZE;
+    int y = row * TILE_SIZE;
+    int w = Math.min(width, bitmap.getWidth() - x);
+    int h = Math.min(height, bitmap.getHeight() - y);
+    if (w <= 0 || h <= 0) {
+      return false;
+    }
+    bitmap.setPixels(pixels_, 0, width, x, y, w, h);
+    return true;
+  }
+
+  private void restoreStep(Bitmap bitmap, Step step, byte tiles[][],
+			   TileListener listener) {
+    for (int i = 0; i < step.count_; i++) {
+      int column = step.tiles_[i] % columns_;
+      int row = step.tiles_[i] / columns_;
+      getTileBounds(bitmap, column, row, tile_);
+      restoreTile(bitmap, column, row, tile_.width(), tile_.height(),
+		  tiles[i], 0, tiles[i].length);
+      listener.onTileRestored(column, row, tile_.width(), tile_.height(),
+			      tiles[i]);
+    }
+  }
+
+  /** @brief Copies the pixels of a tile into pixels_.
+   *
+   * @return Number of pixels copied.
+   */
+  private int copyTile(Bitmap bitmap, int column, int row) {
+    getTileBounds(bitmap, column, row, tile_);
+    bitmap.getPixels(pixels_, 0, tile_.width(),
+		     tile_.left, tile_.top, tile_.width(), tile_.height());
+    return tile_.width() * tile_.height();
+  }
+
+  /** @brief Called with lock_ held. Moves pixels_ into a free buffer.
+   *
+   * @return The buffer, to hand to the compressor.
+   */
+  private int[] takeCopy() {
+    int copy[];
+    if (freeBuffers_.isEmpty()) {
+      copy = new int[TILE_SIZE * TILE_SIZE];
+    } else {
+      copy = freeBuffers_.remove(freeBuffers_.size() - 1);
+    }
+    System.arraycopy(pixels_, 0, copy, 0, copy.length);
+    return copy;
+  }
+
+  /** @brief Called with lock_ held after copies were added to a step.
+   * Queues the step, and wakes (or starts) the compressor.
+   */
+  private void queueStep(Step step) {
+    if (!compressQueue_.contains(step)) {
+      compressQueue_.add(step);
+    }
+    if (compressor_ == null) {
+      compressor_ = new Thread(new Runnable() {
+	  @Override
+	    public void run() {
+	    runCompressor();
+	  }
+	}, "UndoHistory");
+      compressor_.setPriority(Thread.MIN_PRIORITY);
+      compressor_.start();
+    } else {
+      lock_.notifyAll();
+    }
+  }
+
+  /** @brief Body of the compressor thread. Exits once idle for a while.
+   */
+  private void runCompressor() {
+    try {
+      while (true) {
+	Step step;
+	int index;
+	boolean after;
+	int copy[];
+	synchronized (lock_) {
+	  while (compressQueue_.isEmpty()) {
+	    long start = System.currentTimeMillis();
+	    lock_.wait(COMPRESSOR_IDLE_MILLIS);
+	    if (compressQueue_.isEmpty() &&
+		System.currentTimeMillis() - start >= COMPRESSOR_IDLE_MILLIS) {
+	      compressor_ = null;
+	      return;
+	    }
+	  }
+	  step = compressQueue_.get(0);
+	  index = nextCopy(step);
+	  if (index < 0) {
+	    compressQueue_.remove(0);
+	    continue;
+	  }
+	  after = step.rawBefore_[index] == null;
+	  copy = after ? step.rawAfter_[index] : step.rawBefore_[index];
+	  // The copy stays in the step, so undo() and redo() can compress it
+	  // too rather than wait.
+	  compressing_ = copy;
+	}
+
+	byte data[] = compressorDeflater_.compress(copy, step.sizes_[index]);
+
+	synchronized (lock_) {
+	  compressing_ = null;
+	  if (!step.dropped_ &&
+	      (after ? step.rawAfter_[index] : step.rawBefore_[index]) == copy) {
+	    storeTile(step, index, after, data);
+	    trimToBudget();
+	  } else {
+	    // Dropped, or undo() or redo() got to it first.
+	    freeBuffer(copy);
+	  }
+	}
+      }
+    } catch (InterruptedException e) {
+      synchronized (lock_) {
+	compressor_ = null;
+      }
+    }
+  }
+
+  /** @brief Called with lock_ held. Finds a copy of a step to compress.
+   *
+   * @return Index of a tile with a copy waiting, or -1 if there is none.
+   */
+  private static int nextCopy(Step step) {
+    if (step.dropped_) {
+      return -1;
+    }
+    for (int i = 0; i < step.count_; i++) {
+      if (step.rawBefore_[i] != null || step.rawAfter_[i] != null) {
+	return i;
+      }
+    }
+    return -1;
+  }
+
+  /** @brief Called with lock_ held. Stores the compressed pixels of a copy,
+   * and frees the copy unless the compressor is reading it.
+   */
+  private void storeTile(Step step, int index, boolean after, byte data[]) {
+    int copy[];
+    if (after) {
+      copy = step.rawAfter_[index];
+      step.rawAfter_[index] = null;
+      step.after_[index] = data;
+    } else {
+      copy = step.rawBefore_[index];
+      step.rawBefore_[index] = null;
+      step.before_[index] = data;
+    }
+    if (copy != compressing_) {
+      freeBuffer(copy);
+    }
+    step.bytes_ += data.length;
+    if (step.kept_) {
+      bytes_ += data.length;
+    }
+  }
+
+  /** @brief Called with lock_ held. Compresses the copies of one side of a
+   * step the compressor has not got to yet, on the calling thread. Does not
+   * trim the history, so the step stays whole; the next trim catches up.
+   *
+   * @param after True for the tiles as they ended up, false for the tiles
+   *     from before the step.
+   */
+  private void compressCopies(Step step, boolean after) {
+    int copies[][] = after ? step.rawAfter_ : step.rawBefore_;
+    for (int i = 0; i < step.count_; i++) {
+      if (copies[i] != null) {
+	storeTile(step, i, after,
+		  callerDeflater_.compress(copies[i], step.sizes_[i]));
+      }
+    }
+  }
+
+  /** @brief Called with lock_ held. Drops the oldest steps until the history
+   * fits its budget.
+   */
+  private void trimToBudget() {
+    while (bytes_ > byteBudget_ && !undo_.isEmpty()) {
+      dropStep(undo_.remove(0));
+    }
+  }
+
+  /** @brief Called with lock_ held, for a step no longer in either list.
+   * Frees its copies; the compressor drops whatever it is still doing for
+   * it.
+   */
+  private void dropStep(Step step) {
+    if (step.kept_) {
+      bytes_ -= step.bytes_;
+    }
+    step.dropped_ = true;
+    step.kept_ = false;
+    for (int i = 0; i < step.count_; i++) {
+      if (step.rawBefore_[i] != null && step.rawBefore_[i] != compressing_) {
+	freeBuffer(step.rawBefore_[i]);
+      }
+      if (step.rawAfter_[i] != null && step.rawAfter_[i] != compressing_) {
+	freeBuffer(step.rawAfter_[i]);
+      }
+      step.rawBefore_[i] = null;
+      step.rawAfter_[i] = null;
+    }
+    compressQueue_.remove(step);
+  }
+
+  /** @brief Called with lock_ held. Keeps a pixel buffer for reuse, unless
+   * enough are kept already.
+   */
+  private void freeBuffer(int buffer[]) {
+    if (freeBuffers_.size() < MAX_FREE_BUFFERS) {
+      freeBuffers_.add(buffer);
+    }
+  }
+
+  private static void getTileBounds(Bitmap bitmap, int column, int row,
+				    Rect bounds) {
+    bounds.set(column * TILE_SIZE, row * TILE_SIZE,
+	       Math.min((column + 1) * TILE_SIZE, bitmap.getWidth()),
+	       Math.min((row + 1) * TILE_SIZE, bitmap.getHeight()));
+  }
+
+  private void resetTiles(int columns, int rows) {
+    clear();
+    columns_ = columns;
+    if (capturedIn_.length < columns * rows) {
+      capturedIn_ = new int[columns * rows];
+    }
+    for (int i = 0; i < capturedIn_.length; i++) {
+      capturedIn_[i] = 0;
+    }
+    if (current_ != null) {
+      synchronized (lock_) {
+	// The copies already taken no longer match the tile numbering.
+	dropStep(current_);
+	current_ = new Step(16);
+      }
+    }
+  }
+
+  private static void growStep(Step step) {
+    int capacity = step.tiles_.length * 2;
+    int tiles[] = new int[capacity];
+    int sizes[] = new int[capacity];
+    byte before[][] = new byte[capacity][];
+    byte after[][] = new byte[capacity][];
+    int rawBefore[][] = new int[capacity][];
+    int rawAfter[][] = new int[capacity][];
+    System.arraycopy(step.tiles_, 0, tiles, 0, step.count_);
+    System.arraycopy(step.sizes_, 0, sizes, 0, step.count_);
+    System.arraycopy(step.before_, 0, before, 0, step.count_);
+    System.arraycopy(step.after_, 0, after, 0, step.count_);
+    System.arraycopy(step.rawBefore_, 0, rawBefore, 0, step.count_);
+    System.arraycopy(step.rawAfter_, 0, rawAfter, 0, step.count_);
+    step.tiles_ = tiles;
+    step.sizes_ = sizes;
+    step.before_ = before;
+    step.after_ = after;
+    step.rawBefore_ = rawBefore;
+    step.rawAfter_ = rawAfter;
+  }
+
+  /** Deflate state and scratch for one thread. */
+  private static class TileDeflater {
+    private final byte input_[] = new byte[TILE_SIZE * TILE_SIZE * 4];
+    private byte output_[] = new byte[TILE_SIZE * TILE_SIZE * 4 + 64];
+    private final Deflater deflater_ = new Deflater(Deflater.BEST_SPEED);
+
+    /** @brief Compresses copied tile pixels.
+     *
+     * @param copy Pixels of the tile.
+     * @param count Number of pixels.
+     * @return The compressed pixels.
+     */
+    byte[] compress(int copy[], int count) {
+      for (int i = 0, j = 0; i < count; i++, j += 4) {
+	int pixel = copy[i];
+	input_[j] = (byte)(pixel >>> 24);
+	input_[j + 1] = (byte)(pixel >>> 16);
+	input_[j + 2] = (byte)(pixel >>> 8);
+	input_[j + 3] = (byte)pixel;
+      }
+      deflater_.reset();
+      deflater_.setInput(input_, 0, count * 4);
+      deflater_.finish();
+      int size = 0;
+      while (!deflater_.finished()) {
+	if (size == output_.length) {
+	  byte grown[] = new byte[output_.length * 2];
+	  System.arraycopy(output_, 0, grown, 0, size);
+	  output_ = grown;
+	}
+	size += deflater_.deflate(output_, size, output_.length - size);
+      }
+      byte data[] = new byte[size];
+      System.arraycopy(output_, 0, data, 0, size);
+      return data;
+    }
+  }
+}
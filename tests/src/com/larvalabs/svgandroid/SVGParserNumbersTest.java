@@ -0,0 +1,52 @@
+package com.larvalabs.svgandroid;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the number-list scanning used for points and transform attributes.
+ */
+public class SVGParserNumbersTest extends TestCase {
+
+    private static void assertNumbers(String s, float... expected) {
+        assertNumbers(SVGParser.parseNumbers(s), expected);
+    }
+
+    private static void assertNumbers(SVGParser.NumberParse np, float... expected) {
+        assertEquals("count", expected.length, np.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("number " + i, expected[i], np.getNumber(i), 0.0f);
+        }
+    }
+
+    public void testCommasAndSpaces() {
+        assertNumbers("10,20 30 , 40", 10, 20, 30, 40);
+    }
+
+    public void testCrlfAfterComma() {
+        assertNumbers("10,\r\n20,\r\n30,40", 10, 20, 30, 40);
+    }
+
+    public void testCrlfAroundComma() {
+        assertNumbers("10 ,\r\n 20", 10, 20);
+    }
+
+    public void testMixedSeparators() {
+        assertNumbers("\r\n1\t2 ,3\r4,,5\f6 \r\n", 1, 2, 3, 4, 5, 6);
+    }
+
+    public void testSignsSeparateNumbers() {
+        assertNumbers("1-2+3 -4.5e1", 1, -2, 3, -45);
+    }
+
+    public void testStopsAtNextCommand() {
+        String s = "matrix(1,\r\n0 0,1\r\n5,6) translate(2)";
+        SVGParser.NumberParse np = SVGParser.parseNumbers(s, "matrix(".length());
+        assertNumbers(np, 1, 0, 0, 1, 5, 6);
+        assertEquals(s.indexOf(')'), np.getNextCmd());
+    }
+
+    public void testEmpty() {
+        assertNumbers("");
+        assertNumbers(" \r\n ");
+    }
+}
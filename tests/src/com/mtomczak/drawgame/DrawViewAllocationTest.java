@@ -0,0 +1,146 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Checks that drawing a stroke in DrawView does not allocate once warmed up.
+ *
+ * Drags only add to the strokes; the painting is drawn by a flush on the next
+ * display frame, which never comes inside a @UiThreadTest. So the counted
+ * stroke ends with ACTION_UP, which flushes every stroke, and each move is
+ * followed by an onDraw, as on a device. That covers the stroke flush, the
+ * undo capture, the latency recording and, with the overlay on, the overlay.
+ *
+ * The counted stroke repeats a warm-up stroke over the same few tiles, so the
+ * undo history has tile buffers to reuse. Allocations are counted per thread
+ * with Debug.startAllocCounting(), so the undo compressor and other threads
+ * do not interfere. The MotionEvents are all obtained before counting
+ * starts.
+ */
+public class DrawViewAllocationTest extends InstrumentationTestCase {
+  private static final int WIDTH = 800;
+  private static final int HEIGHT = 1280;
+  private static final int SAMPLES = 200;
+  /** Time the undo compressor gets to hand back the warm-up's buffers. */
+  private static final long COMPRESSOR_SETTLE_MILLIS = 500;
+
+  private DrawView view_;
+  private Canvas canvas_;
+  private MotionEvent down_;
+  private MotionEvent moves_[];
+  private MotionEvent up_;
+
+  /** Builds the view; runs on the UI thread, which its Handlers need. */
+  private void createView() {
+    view_ = new DrawView(getInstrumentation().getTargetContext(), null);
+    view_.measure(
+      View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+      View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+    view_.layout(0, 0, WIDTH, HEIGHT);
+    canvas_ = new Canvas(
+      Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+
+    long down = SystemClock.uptimeMillis();
+    float x = WIDTH / 2;
+    float y = HEIGHT / 4;
+    down_ = MotionEvent.obtain(down, down, MotionEvent.ACTION_DOWN, x, y, 0);
+    moves_ = new MotionEvent[SAMPLES];
+    for (int i = 0; i < moves_.length; i++) {
+      // Scribble over a few tiles, clear of the crayon gutter.
+      moves_[i] = MotionEvent.obtain(
+	down, down + i, MotionEvent.ACTION_MOVE,
+	x + ((i % 20) - 10) * 3.0f, y + ((i % 14) - 7) * 3.0f, 0);
+    }
+    up_ = MotionEvent.obtain(
+      down, down + SAMPLES, MotionEvent.ACTION_UP, x, y, 0);
+  }
+
+  @Override
+    protected void tearDown() throws Exception {
+    if (moves_ != null) {
+      down_.recycle();
+      for (int i = 0; i < moves_.length; i++) {
+	moves_[i].recycle();
+      }
+      up_.recycle();
+    }
+    super.tearDown();
+  }
+
+  @UiThreadTest
+  public void testStrokeDoesNotAllocate() throws Exception {
+    createView();
+    assertEquals("allocations over a stroke of " + SAMPLES + " drags",
+		 0, countStrokeAllocations());
+  }
+
+  @UiThreadTest
+  public void testStrokeWithOverlayDoesNotAllocate() throws Exception {
+    createView();
+    view_.setLatencyOverlayEnabled(true);
+    assertEquals("allocations over a stroke of " + SAMPLES +
+		 " drags with the latency overlay",
+		 0, countStrokeAllocations());
+  }
+
+  /** @brief Draws a warm-up stroke, then counts the allocations of a second
+   * stroke over the same path.
+   *
+   * The ACTION_DOWN of the counted stroke is not counted: starting a stroke
+   * opens an undo step, which allocates once per stroke.
+   *
+   * @return Allocations on this thread during the counted stroke.
+   */
+  private int countStrokeAllocations() throws InterruptedException {
+    drawStroke();
+    view_.draw(canvas_);
+    Thread.sleep(COMPRESSOR_SETTLE_MILLIS);
+
+    view_.onTouchEvent(down_);
+    view_.draw(canvas_);
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+    for (int i = 0; i < moves_.length; i++) {
+      view_.onTouchEvent(moves_[i]);
+      view_.draw(canvas_);
+    }
+    // Flushes the strokes and closes the undo step.
+    view_.onTouchEvent(up_);
+    // Records the latencies of the flushed samples.
+    view_.draw(canvas_);
+    Debug.stopAllocCounting();
+    return Debug.getThreadAllocCount();
+  }
+
+  private void drawStroke() {
+    view_.onTouchEvent(down_);
+    for (int i = 0; i < moves_.length; i++) {
+      view_.onTouchEvent(moves_[i]);
+      view_.draw(canvas_);
+    }
+    view_.onTouchEvent(up_);
+  }
+}
@@ -0,0 +1,94 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import junit.framework.TestCase;
+
+/**
+ * Bucket arithmetic and percentiles of LatencyHistogram.
+ */
+public class LatencyHistogramTest extends TestCase {
+  public void testSmallValuesAreExact() {
+    for (int value = 0; value < LatencyHistogram.LINEAR_LIMIT; value++) {
+      assertEquals(value, LatencyHistogram.bucketOf(value));
+      assertEquals(value, LatencyHistogram.upperBoundOf(value));
+    }
+  }
+
+  public void testBucketsAreContiguous() {
+    // Each bucket starts one past the end of the one before it.
+    for (int bucket = 0; bucket < LatencyHistogram.BUCKETS - 1; bucket++) {
+      long upper = LatencyHistogram.upperBoundOf(bucket);
+      assertEquals(bucket, LatencyHistogram.bucketOf(upper));
+      assertEquals(bucket + 1, LatencyHistogram.bucketOf(upper + 1));
+    }
+    assertEquals(Long.MAX_VALUE,
+		 LatencyHistogram.upperBoundOf(LatencyHistogram.BUCKETS - 1));
+  }
+
+  public void testUpperBoundIsWithinOneSubBucket() {
+    for (long value = 1; value < 1000000; value += 1 + value / 64) {
+      long upper =
+	LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(value));
+      assertTrue(upper >= value);
+      assertTrue(value + " reads as " + upper,
+		 upper - value <= value / LatencyHistogram.SUB_BUCKETS);
+    }
+  }
+
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentile(50));
+    for (int value = 1; value <= 100; value++) {
+      histogram.record(value);
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(50, histogram.getPercentile(50));
+    // 90 and 99 share buckets two values wide with 91 and 98.
+    assertEquals(91, histogram.getPercentile(90));
+    assertEquals(99, histogram.getPercentile(99));
+    assertEquals(1, histogram.getPercentile(0));
+    assertEquals(100, histogram.getPercentile(100));
+  }
+
+  public void testLargeValueIsCappedAtMax() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1000);
+    assertEquals(1000, histogram.getPercentile(50));
+    histogram.record(1001);
+    assertEquals(1001, histogram.getPercentile(100));
+    // 1000 shares a bucket with 1001, so it reads as the bucket's top.
+    assertEquals(1001, histogram.getPercentile(50));
+  }
+
+  public void testNegativeValuesCountAsZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    assertEquals(1, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(100));
+  }
+
+  public void testDroppedValuesAreCountedApart() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(10);
+    histogram.recordDropped(3);
+    histogram.recordDropped(2);
+    assertEquals(1, histogram.getCount());
+    assertEquals(5, histogram.getDropped());
+    assertEquals(10, histogram.getPercentile(100));
+  }
+}
@@ -0,0 +1,72 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.content.res.Resources;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.larvalabs.svgandroid.SVGParser;
+
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Per-document parse time of the bundled SVGs.
+ *
+ * SVGParser keeps a SAX reader per thread, so a parse no longer looks up the
+ * parser factory and builds a reader. The benchmark times a parse with the
+ * reused reader, and separately the factory lookup and reader setup that
+ * every parse used to pay; their sum is the time a parse took before the
+ * reader was reused. Results go to the log under TAG.
+ */
+public class SVGParserBenchmark extends InstrumentationTestCase {
+  private static final String TAG = "SVGParserBenchmark";
+  private static final int WARMUP = 10;
+  private static final int RUNS = 100;
+
+  public void testCrayonParseTime() throws Exception {
+    benchmark("crayon.svg", R.raw.crayon);
+  }
+
+  public void testEraserParseTime() throws Exception {
+    benchmark("eraser.svg", R.raw.eraser);
+  }
+
+  private void benchmark(String name, int resource) throws Exception {
+    Resources resources =
+      getInstrumentation().getTargetContext().getResources();
+    for (int i = 0; i < WARMUP; i++) {
+      SVGParser.getSVGFromResource(resources, resource);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < RUNS; i++) {
+      assertNotNull(SVGParser.getSVGFromResource(resources, resource));
+    }
+    long parseNanos = (System.nanoTime() - start) / RUNS;
+
+    start = System.nanoTime();
+    for (int i = 0; i < RUNS; i++) {
+      assertNotNull(
+	SAXParserFactory.newInstance().newSAXParser().getXMLReader());
+    }
+    long setupNanos = (System.nanoTime() - start) / RUNS;
+
+    Log.i(TAG, name + ": reused reader " + parseNanos / 1000 +
+	  " us/doc, new reader per parse " + (parseNanos + setupNanos) / 1000 +
+	  " us/doc (setup " + setupNanos / 1000 + " us)");
+  }
+}
@@ -0,0 +1,84 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Blot planning of ShakeEraser: repeatable for a seed, and independent of
+ * the frame rate.
+ */
+public class ShakeEraserTest extends TestCase {
+  private static final int WIDTH = 800;
+  private static final int HEIGHT = 1280;
+
+  public void testSameSeedAndTimingGiveSameBlots() {
+    ShakeEraser first = new ShakeEraser(new Random(42));
+    ShakeEraser second = new ShakeEraser(new Random(42));
+    first.start(1000);
+    second.start(1000);
+    for (long now = 1016; now < 3000; now += 16 + now % 7) {
+      float intensity = (now % 100) / 100.0f;
+      float pace = (now % 37) / 37.0f;
+      int count = first.plan(now, intensity, pace, WIDTH, HEIGHT);
+      assertEquals(count, second.plan(now, intensity, pace, WIDTH, HEIGHT));
+      if (count > 0) {
+	assertEquals(first.getBlotWidth(), second.getBlotWidth());
+	for (int i = 0; i < count * 2; i++) {
+	  assertEquals(first.getPoints()[i], second.getPoints()[i]);
+	}
+      }
+    }
+  }
+
+  public void testBlotsDueDoNotDependOnFrameRate() {
+    for (int pace = 0; pace <= 4; pace++) {
+      ShakeEraser oneStep = new ShakeEraser(new Random(1));
+      oneStep.start(0);
+      int once = oneStep.plan(200, 1.0f, pace / 4.0f, WIDTH, HEIGHT);
+
+      ShakeEraser tenSteps = new ShakeEraser(new Random(1));
+      tenSteps.start(0);
+      int total = 0;
+      for (long now = 20; now <= 200; now += 20) {
+	total += tenSteps.plan(now, 1.0f, pace / 4.0f, WIDTH, HEIGHT);
+      }
+      assertEquals("pace " + pace / 4.0f, once, total);
+    }
+  }
+
+  public void testBlotsStayOnThePainting() {
+    ShakeEraser eraser = new ShakeEraser(new Random(7));
+    eraser.start(0);
+    int count = eraser.plan(250, 1.0f, 1.0f, WIDTH, HEIGHT);
+    assertEquals(5, count);
+    float points[] = eraser.getPoints();
+    for (int i = 0; i < count; i++) {
+      assertTrue(points[i * 2] >= 0 && points[i * 2] < WIDTH);
+      assertTrue(points[i * 2 + 1] >= 0 && points[i * 2 + 1] < HEIGHT);
+    }
+  }
+
+  public void testNothingDueWithoutTimePassing() {
+    ShakeEraser eraser = new ShakeEraser(new Random(7));
+    eraser.start(500);
+    assertEquals(0, eraser.plan(500, 1.0f, 1.0f, WIDTH, HEIGHT));
+    assertEquals(0, eraser.plan(400, 1.0f, 1.0f, WIDTH, HEIGHT));
+  }
+}
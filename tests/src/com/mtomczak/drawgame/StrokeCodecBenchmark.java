@@ -0,0 +1,116 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Encode and decode throughput of StrokeCodec.
+ *
+ * The stream is a long stroke of drag samples a few pixels apart, the
+ * common case while drawing. Results go to the log under TAG, in samples
+ * per second and bytes per sample.
+ */
+public class StrokeCodecBenchmark extends TestCase {
+  private static final String TAG = "StrokeCodecBenchmark";
+  private static final int SAMPLES = 100000;
+  private static final int WARMUP = 5;
+  private static final int RUNS = 20;
+
+  private final byte buffer_[] =
+    new byte[(SAMPLES + 2) * StrokeCodec.MAX_RECORD_SIZE];
+  private final float xs_[] = new float[SAMPLES];
+  private final float ys_[] = new float[SAMPLES];
+
+  @Override
+    protected void setUp() throws Exception {
+    super.setUp();
+    for (int i = 0; i < SAMPLES; i++) {
+      xs_[i] = 400.0f + 300.0f * (float)Math.sin(i * 0.01);
+      ys_[i] = 600.0f + 500.0f * (float)Math.cos(i * 0.007);
+    }
+  }
+
+  public void testThroughput() {
+    int size = 0;
+    for (int i = 0; i < WARMUP; i++) {
+      size = encode();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < RUNS; i++) {
+      size = encode();
+    }
+    long encodeNanos = (System.nanoTime() - start) / RUNS;
+
+    CountingListener listener = new CountingListener();
+    for (int i = 0; i < WARMUP; i++) {
+      assertEquals(size, new StrokeCodec().decode(buffer_, 0, size, listener));
+    }
+    start = System.nanoTime();
+    for (int i = 0; i < RUNS; i++) {
+      new StrokeCodec().decode(buffer_, 0, size, listener);
+    }
+    long decodeNanos = (System.nanoTime() - start) / RUNS;
+    assertEquals((WARMUP + RUNS) * SAMPLES, listener.drags_);
+
+    Log.i(TAG, SAMPLES + " samples, " + (float)size / SAMPLES +
+	  " bytes/sample: encode " + rate(encodeNanos) +
+	  " samples/s, decode " + rate(decodeNanos) + " samples/s");
+  }
+
+  private int encode() {
+    StrokeCodec codec = new StrokeCodec();
+    int size = codec.encodeTouchStart(buffer_, 0, 0, xs_[0], ys_[0], 0, 8.0f);
+    for (int i = 0; i < SAMPLES; i++) {
+      size = codec.encodeDrag(buffer_, size, 0, xs_[i], ys_[i]);
+    }
+    return codec.encodeTouchStop(buffer_, size, 0);
+  }
+
+  private static long rate(long nanos) {
+    return nanos == 0 ? 0 : SAMPLES * 1000000000L / nanos;
+  }
+
+  private static class CountingListener implements StrokeCodec.Listener {
+    int drags_ = 0;
+
+    @Override
+      public void onTouchStart(
+	int id, float x, float y, int crayon, float width) {
+    }
+
+    @Override
+      public void onDrag(int id, float x, float y) {
+      drags_++;
+    }
+
+    @Override
+      public void onTouchStop(int id) {
+    }
+
+    @Override
+      public void onEraseBlot(float x, float y, float width) {
+    }
+
+    @Override
+      public void onTile(int column, int row, int width, int height,
+			 byte data[], int offset, int length) {
+    }
+  }
+}
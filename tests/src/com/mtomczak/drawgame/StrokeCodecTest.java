@@ -0,0 +1,243 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trips through StrokeCodec, and decoding of damaged data.
+ */
+public class StrokeCodecTest extends TestCase {
+  private byte buffer_[];
+  private int size_;
+  private StrokeCodec encoder_;
+
+  @Override
+    protected void setUp() throws Exception {
+    super.setUp();
+    buffer_ = new byte[64 * StrokeCodec.MAX_RECORD_SIZE];
+    size_ = 0;
+    encoder_ = new StrokeCodec();
+  }
+
+  public void testStrokeRoundTrip() {
+    size_ = encoder_.encodeTouchStart(buffer_, size_, 2, 10.25f, 20.5f,
+				      3, 12.0f);
+    size_ = encoder_.encodeDrag(buffer_, size_, 2, 11.0f, 21.75f);
+    size_ = encoder_.encodeDrag(buffer_, size_, 2, 12.5f, 21.75f);
+    size_ = encoder_.encodeTouchStop(buffer_, size_, 2);
+
+    assertEquals("start 2 10.25 20.5 3 12.0;" +
+		 "drag 2 11.0 21.75;" +
+		 "drag 2 12.5 21.75;" +
+		 "stop 2;",
+		 decodeAll());
+  }
+
+  public void testSmallDeltasTakeOneBytePerAxis() {
+    size_ = encoder_.encodeTouchStart(buffer_, size_, 0, 100.0f, 100.0f,
+				      0, 8.0f);
+    int start = size_;
+    // Up to 63 quanta either way fits in one zigzag byte.
+    size_ = encoder_.encodeDrag(buffer_, size_, 0, 115.75f, 84.25f);
+    assertEquals(3, size_ - start);
+    assertEquals("start 0 100.0 100.0 0 8.0;drag 0 115.75 84.25;",
+		 decodeAll());
+  }
+
+  public void testNegativeDeltas() {
+    size_ = encoder_.encodeTouchStart(buffer_, size_, 1, 500.0f, 400.0f,
+				      1, 8.0f);
+    size_ = encoder_.encodeDrag(buffer_, size_, 1, 499.75f, 399.0f);
+    size_ = encoder_.encodeDrag(buffer_, size_, 1, 300.0f, 0.0f);
+    size_ = encoder_.encodeDrag(buffer_, size_, 1, -20.5f, -1.25f);
+    size_ = encoder_.encodeTouchStop(buffer_, size_, 1);
+
+    assertEquals("start 1 500.0 400.0 1 8.0;" +
+		 "drag 1 499.75 399.0;" +
+		 "drag 1 300.0 0.0;" +
+		 "drag 1 -20.5 -1.25;" +
+		 "stop 1;",
+		 decodeAll());
+  }
+
+  public void testLargeDeltas() {
+    size_ = encoder_.encodeTouchStart(buffer_, size_, 0,
+				      -1000000.0f, 1000000.0f, 7, 4096.0f);
+    size_ = encoder_.encodeDrag(buffer_, size_, 0, 1000000.0f, -1000000.0f);
+    size_ = encoder_.encodeEraseBlot(buffer_, size_, -250000.5f, 250000.25f,
+				     100000.0f);
+
+    assertEquals("start 0 -1000000.0 1000000.0 7 4096.0;" +
+		 "drag 0 1000000.0 -1000000.0;" +
+		 "blot -250000.5 250000.25 100000.0;",
+		 decodeAll());
+  }
+
+  public void testCoordinatesAreQuantized() {
+    size_ = encoder_.encodeTouchStart(buffer_, size_, 0, 1.1f, 2.9f, 0, 8.0f);
+    size_ = encoder_.encodeDrag(buffer_, size_, 0, 1.2f, 3.0f);
+    assertEquals("start 0 1.0 3.0 0 8.0;drag 0 1.25 3.0;", decodeAll());
+  }
+
+  public void testPointersKeepTheirOwnLastPoint() {
+    size_ = encoder_.encodeTouchStart(buffer_, size_, 0, 10.0f, 10.0f, 0, 8.0f);
+    size_ = encoder_.encodeTouchStart(buffer_, size_, 1, 500.0f, 500.0f,
+				      0, 8.0f);
+    size_ = encoder_.encodeDrag(buffer_, size_, 0, 11.0f, 12.0f);
+    size_ = encoder_.encodeDrag(buffer_, size_, 1, 499.0f, 498.0f);
+    size_ = encoder_.encodeDrag(buffer_, size_, StrokeCodec.MAX_POINTER_ID,
+				3.0f, 4.0f);
+
+    assertEquals("start 0 10.0 10.0 0 8.0;" +
+		 "start 1 500.0 500.0 0 8.0;" +
+		 "drag 0 11.0 12.0;" +
+		 "drag 1 499.0 498.0;" +
+		 "drag 31 3.0 4.0;",
+		 decodeAll());
+  }
+
+  public void testEmptyStroke() {
+    size_ = encoder_.encodeTouchStart(buffer_, size_, 0, 5.0f, 6.0f, 2, 8.0f);
+    size_ = encoder_.encodeTouchStop(buffer_, size_, 0);
+    assertEquals("start 0 5.0 6.0 2 8.0;stop 0;", decodeAll());
+  }
+
+  public void testEmptyData() {
+    Recorder recorder = new Recorder();
+    assertEquals(0, new StrokeCodec().decode(buffer_, 0, 0, recorder));
+    assertEquals("", recorder.events_.toString());
+  }
+
+  public void testTileRoundTrip() {
+    byte pixels[] = { 1, 2, 3, (byte)0xff, 0, 7 };
+    size_ = encoder_.encodeTile(buffer_, size_, 3, 4, 64, 32, pixels, 5);
+    size_ = encoder_.encodeTouchStop(buffer_, size_, 0);
+    assertEquals("tile 3 4 64 32 [1,2,3,-1,0];stop 0;", decodeAll());
+  }
+
+  public void testTruncatedTailIsDropped() {
+    size_ = encoder_.encodeTouchStart(buffer_, size_, 0, 5.0f, 6.0f, 2, 8.0f);
+    int complete = size_;
+    size_ = encoder_.encodeDrag(buffer_, size_, 0, 1000.0f, 2000.0f);
+
+    // Every cut inside the drag record keeps only the stroke header.
+    for (int end = complete; end < size_; end++) {
+      Recorder recorder = new Recorder();
+      assertEquals(complete,
+		   new StrokeCodec().decode(buffer_, 0, end, recorder));
+      assertEquals("start 0 5.0 6.0 2 8.0;", recorder.events_.toString());
+    }
+  }
+
+  public void testTruncatedTileIsDropped() {
+    size_ = encoder_.encodeTouchStop(buffer_, size_, 0);
+    int complete = size_;
+    byte pixels[] = new byte[20];
+    size_ = encoder_.encodeTile(buffer_, size_, 0, 0, 64, 64, pixels, 20);
+
+    Recorder recorder = new Recorder();
+    assertEquals(complete,
+		 new StrokeCodec().decode(buffer_, 0, size_ - 1, recorder));
+    assertEquals("stop 0;", recorder.events_.toString());
+  }
+
+  public void testUnknownRecordStopsDecoding() {
+    size_ = encoder_.encodeTouchStart(buffer_, size_, 0, 5.0f, 6.0f, 2, 8.0f);
+    int complete = size_;
+    buffer_[size_++] = (byte)0xe0;  // Type 7 does not exist.
+    size_ = encoder_.encodeTouchStop(buffer_, size_, 0);
+
+    Recorder recorder = new Recorder();
+    assertEquals(complete,
+		 new StrokeCodec().decode(buffer_, 0, size_, recorder));
+    assertEquals("start 0 5.0 6.0 2 8.0;", recorder.events_.toString());
+  }
+
+  public void testOverlongVarintStopsDecoding() {
+    size_ = encoder_.encodeTouchStop(buffer_, size_, 0);
+    int complete = size_;
+    size_ = encoder_.encodeDrag(buffer_, size_, 0, 1.0f, 1.0f);
+    // Replace the x offset with six continuation bytes.
+    size_ = complete + 1;
+    for (int i = 0; i < 6; i++) {
+      buffer_[size_++] = (byte)0x80;
+    }
+    buffer_[size_++] = 0;
+    buffer_[size_++] = 0;
+
+    Recorder recorder = new Recorder();
+    assertEquals(complete,
+		 new StrokeCodec().decode(buffer_, 0, size_, recorder));
+    assertEquals("stop 0;", recorder.events_.toString());
+  }
+
+  public void testValidateWithoutListener() {
+    size_ = encoder_.encodeTouchStart(buffer_, size_, 0, 5.0f, 6.0f, 2, 8.0f);
+    size_ = encoder_.encodeTouchStop(buffer_, size_, 0);
+    assertEquals(size_, new StrokeCodec().decode(buffer_, 0, size_, null));
+  }
+
+  /** @brief Decodes buffer_ with a fresh codec, which must consume all of
+   * it.
+   *
+   * @return The decoded events.
+   */
+  private String decodeAll() {
+    Recorder recorder = new Recorder();
+    assertEquals(size_, new StrokeCodec().decode(buffer_, 0, size_, recorder));
+    return recorder.events_.toString();
+  }
+
+  /** Writes each event as text. */
+  private static class Recorder implements StrokeCodec.Listener {
+    final StringBuilder events_ = new StringBuilder();
+
+    @Override
+      public void onTouchStart(
+	int id, float x, float y, int crayon, float width) {
+      events_.append("start " + id + " " + x + " " + y + " " + crayon + " " +
+		     width + ";");
+    }
+
+    @Override
+      public void onDrag(int id, float x, float y) {
+      events_.append("drag " + id + " " + x + " " + y + ";");
+    }
+
+    @Override
+      public void onTouchStop(int id) {
+      events_.append("stop " + id + ";");
+    }
+
+    @Override
+      public void onEraseBlot(float x, float y, float width) {
+      events_.append("blot " + x + " " + y + " " + width + ";");
+    }
+
+    @Override
+      public void onTile(int column, int row, int width, int height,
+			 byte data[], int offset, int length) {
+      events_.append("tile " + column + " " + row + " " + width + " " +
+		     height + " [");
+      for (int i = 0; i < length; i++) {
+	events_.append((i > 0 ? "," : "") + data[offset + i]);
+      }
+      events_.append("];");
+    }
+  }
+}
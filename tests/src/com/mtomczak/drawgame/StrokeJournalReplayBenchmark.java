@@ -0,0 +1,139 @@
+/*
+Copyright 2014 Mark T. Tomczak
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.mtomczak.drawgame;
+
+import android.util.Log;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Time to replay the journal of a ten-minute session.
+ *
+ * The session draws without a break: one two-second stroke after another,
+ * sampled at 60 Hz, with a three-second shake every minute. The benchmark
+ * times reading and decoding the journal into a listener that only counts
+ * events; DrawView logs the time of a full replay, drawing included, when it
+ * restores the painting. Results go to the log under TAG.
+ */
+public class StrokeJournalReplayBenchmark extends TestCase {
+  private static final String TAG = "StrokeJournalReplayBenchmark";
+  private static final int SESSION_SECONDS = 10 * 60;
+  private static final int SAMPLES_PER_SECOND = 60;
+  private static final int STROKE_SECONDS = 2;
+  private static final int SHAKE_SECONDS = 3;
+  private static final int BLOTS_PER_SECOND = 20;
+  private static final int RUNS = 10;
+
+  private File file_;
+
+  @Override
+    protected void setUp() throws Exception {
+    super.setUp();
+    file_ = File.createTempFile("replay", ".journal");
+    file_.delete();
+  }
+
+  @Override
+    protected void tearDown() throws Exception {
+    file_.delete();
+    super.tearDown();
+  }
+
+  public void testTenMinuteSessionReplayTime() {
+    int recorded = recordSession();
+    assertTrue(file_.length() > 0);
+
+    CountingListener listener = new CountingListener();
+    new StrokeJournal(file_).replay(listener);
+    assertEquals(recorded, listener.events_);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < RUNS; i++) {
+      new StrokeJournal(file_).replay(listener);
+    }
+    long replayNanos = (System.nanoTime() - start) / RUNS;
+
+    Log.i(TAG, recorded + " events, " + file_.length() + " bytes: replay " +
+	  replayNanos / 1000000 + " ms");
+  }
+
+  /** @brief Records the session into the journal file.
+   *
+   * @return Number of events recorded.
+   */
+  private int recordSession() {
+    StrokeJournal journal = new StrokeJournal(file_);
+    journal.replay(null);
+    int events = 0;
+    int strokeSamples = STROKE_SECONDS * SAMPLES_PER_SECOND;
+    int strokes = SESSION_SECONDS / STROKE_SECONDS;
+    for (int stroke = 0; stroke < strokes; stroke++) {
+      float x = 100.0f + (stroke % 7) * 50.0f;
+      float y = 100.0f + (stroke % 11) * 60.0f;
+      journal.recordTouchStart(0, x, y, stroke % 8, 20.0f);
+      events++;
+      for (int i = 0; i < strokeSamples; i++) {
+	journal.recordDrag(0, x + (i % 40) * 3.5f, y + i * 1.25f);
+	events++;
+      }
+      journal.recordTouchStop(0);
+      events++;
+
+      if ((stroke + 1) % (60 / STROKE_SECONDS) == 0) {
+	for (int i = 0; i < SHAKE_SECONDS * BLOTS_PER_SECOND; i++) {
+	  journal.recordEraseBlot((i * 37) % 800, (i * 53) % 1280, 300.0f);
+	  events++;
+	}
+      }
+    }
+    journal.close();
+    return events;
+  }
+
+  private static class CountingListener implements StrokeCodec.Listener {
+    int events_ = 0;
+
+    @Override
+      public void onTouchStart(
+	int id, float x, float y, int crayon, float width) {
+      events_++;
+    }
+
+    @Override
+      public void onDrag(int id, float x, float y) {
+      events_++;
+    }
+
+    @Override
+      public void onTouchStop(int id) {
+      events_++;
+    }
+
+    @Override
+      public void onEraseBlot(float x, float y, float width) {
+      events_++;
+    }
+
+    @Override
+      public void onTile(int column, int row, int width, int height,
+			 byte data[], int offset, int length) {
+      events_++;
+    }
+  }
+}